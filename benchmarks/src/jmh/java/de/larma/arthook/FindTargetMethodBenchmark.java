@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures resolving the target of a hook from its {@link Hook} annotation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FindTargetMethodBenchmark {
+    private Method instanceHook;
+    private Method staticHook;
+    private Method constructorHook;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        instanceHook = Hooks.class.getDeclaredMethod("indexOf", String.class, int.class);
+        staticHook = Hooks.class.getDeclaredMethod("parseInt", String.class);
+        constructorHook = Hooks.class.getDeclaredMethod("init", StringBuilder.class, String.class);
+    }
+
+    @Benchmark
+    public Object instanceMethod() throws Exception {
+        return ArtHook.findTargetMethod(instanceHook);
+    }
+
+    @Benchmark
+    public Object staticMethod() throws Exception {
+        return ArtHook.findTargetMethod(staticHook);
+    }
+
+    @Benchmark
+    public Object constructor() throws Exception {
+        return ArtHook.findTargetMethod(constructorHook);
+    }
+
+    static class Hooks {
+        @Hook("java.lang.String->indexOf")
+        static int indexOf(String self, int ch) {
+            return -1;
+        }
+
+        @Hook("java.lang.Integer->parseInt")
+        static int parseInt(String s) {
+            return 0;
+        }
+
+        @Hook("java.lang.StringBuilder-><init>")
+        static void init(StringBuilder self, String s) {
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.larma.arthook.instrs.InstructionHelper;
+
+/**
+ * Measures hooking many methods at once the way {@link ArtHook} activates its pages: every page
+ * is written and its original method patched in a single {@link PatchBatch}. The memory
+ * operations this takes are reported as secondary results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HookLoadBenchmark {
+    private static final int QUICK_COMPILED_CODE_SIZE = 64;
+
+    @Param({"arm32", "thumb2", "arm64"})
+    public String isa;
+
+    @Param({"1000", "50000"})
+    public int methods;
+
+    private final List<HookPage> pages = new ArrayList<>();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        InstructionHelper instructionHelper = Simulation.instructionHelper(isa);
+        long code = Simulation.mapCode(methods * QUICK_COMPILED_CODE_SIZE);
+        long targetAddress = Simulation.mapCode(QUICK_COMPILED_CODE_SIZE);
+        pages.clear();
+        for (int i = 0; i < methods; i++) {
+            long originalAddress = code + i * QUICK_COMPILED_CODE_SIZE;
+            HookPage page = new HookPage(instructionHelper, originalAddress, QUICK_COMPILED_CODE_SIZE);
+            ArtMethod src = Simulation.newArtMethod(new Object(), instructionHelper.toPC(originalAddress));
+            ArtMethod target = Simulation.newArtMethod(new Object(), instructionHelper.toPC(targetAddress));
+            page.addHook(new HookPage.Hook(src, target));
+            pages.add(page);
+        }
+        Simulation.MEMORY.resetCounters();
+    }
+
+    @Benchmark
+    public boolean hook(MemoryCounters counters) {
+        PatchBatch batch = new PatchBatch();
+        for (HookPage page : pages) {
+            page.relocate();
+            page.update(batch);
+            page.activate(batch);
+        }
+        boolean applied = batch.apply();
+        if (applied) {
+            for (HookPage page : pages) {
+                page.activated();
+            }
+        }
+        counters.record(Simulation.MEMORY);
+        return applied;
+    }
+
+    /**
+     * The memory operations of one iteration, counted since the end of its setup.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class MemoryCounters {
+        public long mappings;
+        public long mprotects;
+        public long cacheFlushes;
+        public long bytesWritten;
+
+        void record(SimulatedMemoryBackend memory) {
+            mappings = memory.getMapCount();
+            mprotects = memory.getProtectCount();
+            cacheFlushes = memory.getCacheFlushCount();
+            bytesWritten = memory.getBytesWritten();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import de.larma.arthook.instrs.InstructionHelper;
+
+/**
+ * Measures building the machine code of a hook page. Pages with
+ * {@link HookPage#TABLE_DISPATCH_THRESHOLD} or more hooks are built as dispatch tables where the
+ * instruction set supports them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HookPageBenchmark {
+    private static final int QUICK_COMPILED_CODE_SIZE = 64;
+
+    @Param({"arm32", "thumb2", "arm64"})
+    public String isa;
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int hooks;
+
+    private HookPage page;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        InstructionHelper instructionHelper = Simulation.instructionHelper(isa);
+        long originalAddress = Simulation.mapCode(QUICK_COMPILED_CODE_SIZE);
+        long targetAddress = Simulation.mapCode(QUICK_COMPILED_CODE_SIZE);
+        page = new HookPage(instructionHelper, originalAddress, QUICK_COMPILED_CODE_SIZE);
+        for (int i = 0; i < hooks; i++) {
+            ArtMethod src = Simulation.newArtMethod(new Object(), instructionHelper.toPC(originalAddress));
+            ArtMethod target = Simulation.newArtMethod(new Object(), instructionHelper.toPC(targetAddress));
+            page.addHook(new HookPage.Hook(src, target));
+        }
+    }
+
+    @Benchmark
+    public byte[] create() {
+        return page.create();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import de.larma.arthook.instrs.InstructionHelper;
+
+/**
+ * Measures encoding the jumps written for a single hook.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InstructionHelperBenchmark {
+    @Param({"arm32", "thumb2", "arm64"})
+    public String isa;
+
+    private InstructionHelper instructionHelper;
+
+    // Not final, so the addresses are not constant folded into the encoders
+    private long targetAddress = 0x7f001000L;
+    private long entryPointFromQuickCompiledCode = 0x7f002000L;
+    private long srcAddress = 0x12c00000L;
+    private long counterAddress = 0x7f003000L;
+
+    @Setup
+    public void setUp() {
+        instructionHelper = Simulation.instructionHelper(isa);
+    }
+
+    @Benchmark
+    public byte[] createTargetJump() {
+        return instructionHelper.createTargetJump(targetAddress, entryPointFromQuickCompiledCode, srcAddress,
+                counterAddress);
+    }
+
+    @Benchmark
+    public byte[] createDirectJump() {
+        return instructionHelper.createDirectJump(entryPointFromQuickCompiledCode);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookups hooks use to find their original method, with the given number of
+ * backups stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OriginalMethodBenchmark {
+    @Param({"1", "100", "10000"})
+    public int backups;
+
+    // ArtMethods are only weakly interned, keep the registered ones alive
+    private final List<ArtMethod> artMethods = new ArrayList<>();
+    private Method original;
+    private String identifier;
+
+    @Setup
+    public void setUp() {
+        long entryPoint = Simulation.mapCode(64);
+        for (int i = 0; i < backups; ) {
+            for (Method method : StringBuilder.class.getMethods()) {
+                if (i == backups) break;
+                artMethods.add(Simulation.newArtMethod(method, entryPoint));
+                // Any method will do as backup, it is only invoked when calling the original
+                OriginalMethod.store(method, method, "backup" + i);
+                if (i == backups / 2) {
+                    original = method;
+                    identifier = "backup" + i;
+                }
+                i++;
+            }
+        }
+    }
+
+    @Benchmark
+    public OriginalMethod byIdentifier() {
+        return OriginalMethod.by(identifier);
+    }
+
+    @Benchmark
+    public OriginalMethod byOriginal() {
+        return OriginalMethod.byOriginal(original);
+    }
+
+    @Benchmark
+    public OriginalMethod current() {
+        return OriginalMethod.current();
+    }
+}
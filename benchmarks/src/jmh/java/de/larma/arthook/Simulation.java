@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import de.larma.arthook.instrs.Arm32;
+import de.larma.arthook.instrs.Arm64;
+import de.larma.arthook.instrs.InstructionHelper;
+import de.larma.arthook.instrs.Thumb2;
+
+/**
+ * Creates the runtime state the benchmarks work on in a {@link SimulatedMemoryBackend}, which
+ * is installed before any memory is mapped.
+ */
+final class Simulation {
+    static final SimulatedMemoryBackend MEMORY = new SimulatedMemoryBackend();
+
+    static {
+        Memory.setBackend(MEMORY);
+    }
+
+    /**
+     * Large enough for the ArtMethods of all supported versions
+     */
+    private static final int ART_METHOD_SIZE = 64;
+
+    private static final Slab ART_METHODS = new Slab(ART_METHOD_SIZE, 8);
+
+    /**
+     * Compiled code of methods, read-only and executable like the code of an oat file.
+     */
+    static long mapCode(int length) {
+        long address = Memory.map(length);
+        MEMORY.protect(address, length, SimulatedMemoryBackend.PROT_READ | SimulatedMemoryBackend.PROT_EXEC);
+        return address;
+    }
+
+    private Simulation() {
+    }
+
+    /**
+     * @return A new ArtMethod in simulated memory, used for the given Method, Constructor or any
+     * other object as key instead of the one found by reflection. Like on Android M and later,
+     * the ArtMethod is identified by its address.
+     */
+    static ArtMethod newArtMethod(Object method, long entryPointFromQuickCompiledCode) {
+        ArtMethod artMethod = ArtMethod.intern(method, new ArtMethod(method, ART_METHODS.allocate()));
+        artMethod.setEntryPointFromQuickCompiledCode(entryPointFromQuickCompiledCode);
+        return artMethod;
+    }
+
+    static InstructionHelper instructionHelper(String isa) {
+        switch (isa) {
+            case "arm32":
+                return new Arm32();
+            case "thumb2":
+                return new Thumb2();
+            case "arm64":
+                return new Arm64();
+            default:
+                throw new IllegalArgumentException("Unknown instruction set " + isa);
+        }
+    }
+}
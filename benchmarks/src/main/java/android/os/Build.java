@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Host replacement of the Android class, describes a 64 bit ARM device running Android O.
+ */
+public class Build {
+    public static final String[] SUPPORTED_ABIS = {"arm64-v8a"};
+    public static final String CPU_ABI = "arm64-v8a";
+    public static final String CPU_ABI2 = null;
+    public static final String FINGERPRINT = "host/arthook/benchmarks:8.0.0/OPR1/1:user/release-keys";
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.O;
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+        public static final int LOLLIPOP_MR1 = 22;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int N_MR1 = 25;
+        public static final int O = 26;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Host replacement of the JNI library. The benchmarks access memory through a
+ * {@link SimulatedMemoryBackend}, only the system properties are answered here.
+ */
+public final class Native {
+    private Native() {
+    }
+
+    private static UnsupportedOperationException noNativeMemory() {
+        return new UnsupportedOperationException("No native memory on the host, use a SimulatedMemoryBackend");
+    }
+
+    public static long mmap(int length) {
+        throw noNativeMemory();
+    }
+
+    public static long mmapData(int length) {
+        throw noNativeMemory();
+    }
+
+    public static boolean munmap(long address, int length) {
+        throw noNativeMemory();
+    }
+
+    public static void memcpy(long src, long dest, int length) {
+        throw noNativeMemory();
+    }
+
+    public static void memput(byte[] bytes, long dest) {
+        throw noNativeMemory();
+    }
+
+    public static byte[] memget(long src, int length) {
+        throw noNativeMemory();
+    }
+
+    public static ByteBuffer memview(long address, int length) {
+        throw noNativeMemory();
+    }
+
+    public static long peekLong(long address) {
+        throw noNativeMemory();
+    }
+
+    public static int peekInt(long address) {
+        throw noNativeMemory();
+    }
+
+    public static void pokeLong(long address, long value) {
+        throw noNativeMemory();
+    }
+
+    public static void pokeInt(long address, int value) {
+        throw noNativeMemory();
+    }
+
+    public static long atomicGetLong(long address) {
+        throw noNativeMemory();
+    }
+
+    public static boolean hasAtomics() {
+        return false;
+    }
+
+    static final int CALL_STATIC = 1;
+    static final int CALL_RECEIVER_AS_ARGUMENT = 2;
+    static final int CALL_WIDE = 4;
+
+    public static long methodId(Method method) {
+        throw noNativeMemory();
+    }
+
+    public static long callPrimitive(Class<?> clazz, long methodId, Object receiver, int flags,
+                                     char returnType, int count, long a0, long a1) {
+        throw noNativeMemory();
+    }
+
+    public static Object callObject(Class<?> clazz, long methodId, Object receiver, int flags,
+                                    int count, long a0, long a1) {
+        throw noNativeMemory();
+    }
+
+    public static boolean munprotect(long addr, long len) {
+        throw noNativeMemory();
+    }
+
+    public static boolean patchBatch(long[] addrs, byte[][] payloads) {
+        throw noNativeMemory();
+    }
+
+    public static void ptrace(int pid) {
+    }
+
+    public static boolean is64Bit() {
+        return true;
+    }
+}
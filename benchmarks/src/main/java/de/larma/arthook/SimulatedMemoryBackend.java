@@ -0,0 +1,447 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An address space of its own, so that ArtHook can run where there is no ART, like on the JVM
+ * of a build machine. Every mapping is backed by a Java array, addresses are never reused and
+ * there is an unmapped page between any two mappings.
+ * <p/>
+ * Page protections are enforced like by the MMU: reading pages that are not readable and
+ * writing pages that are not writable throws a {@link Fault}, as does accessing unmapped
+ * memory. Writes through {@link #view(long, int)} are not checked nor counted.
+ * <p/>
+ * The backend counts mappings, mprotect calls, instruction cache flushes and writes, and logs
+ * every write if {@link #setLogWrites(boolean)} is enabled.
+ */
+public final class SimulatedMemoryBackend implements MemoryBackend {
+    public static final int PAGE_SIZE = 4096;
+
+    public static final int PROT_READ = 1;
+    public static final int PROT_WRITE = 2;
+    public static final int PROT_EXEC = 4;
+
+    public static final long DEFAULT_BASE = 0x10000000L;
+    public static final long DEFAULT_SIZE = 1L << 32;
+
+    /**
+     * Kinds of {@link Write}
+     */
+    public static final int WRITE_PUT = 1;
+    public static final int WRITE_PATCH = 2;
+    public static final int WRITE_COPY = 3;
+
+    private final TreeMap<Long, Mapping> mappings = new TreeMap<>();
+    private final long end;
+    private long next;
+
+    private long mapCount;
+    private long unmapCount;
+    private long mappedBytes;
+    private long peakMappedBytes;
+    private long protectCount;
+    private long cacheFlushCount;
+    private long writeCount;
+    private long bytesWritten;
+
+    private boolean logWrites;
+    private final List<Write> writes = new ArrayList<>();
+
+    public SimulatedMemoryBackend() {
+        this(DEFAULT_BASE, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param base Address of the first mapping, has to be page aligned
+     * @param size Size of the address space, mappings fail once it is used up
+     */
+    public SimulatedMemoryBackend(long base, long size) {
+        if ((base & (PAGE_SIZE - 1)) != 0)
+            throw new IllegalArgumentException("base must be page aligned");
+        this.next = base;
+        this.end = base + size;
+    }
+
+    @Override
+    public synchronized long map(int length) {
+        return map(length, PROT_READ | PROT_WRITE | PROT_EXEC);
+    }
+
+    @Override
+    public synchronized long mapData(int length) {
+        return map(length, PROT_READ | PROT_WRITE);
+    }
+
+    private long map(int length, int protection) {
+        if (length <= 0)
+            return 0;
+        long size = pageAlign(length);
+        if (size > Integer.MAX_VALUE || next + size > end)
+            return 0;
+        Mapping mapping = new Mapping(next, (int) size, protection);
+        mappings.put(mapping.address, mapping);
+        next += size + PAGE_SIZE;
+        mapCount++;
+        mappedBytes += size;
+        peakMappedBytes = Math.max(peakMappedBytes, mappedBytes);
+        return mapping.address;
+    }
+
+    /**
+     * Only whole mappings can be unmapped.
+     */
+    @Override
+    public synchronized boolean unmap(long address, int length) {
+        Mapping mapping = mappings.get(address);
+        if (mapping == null || pageAlign(length) != mapping.data.length)
+            return false;
+        mappings.remove(address);
+        unmapCount++;
+        mappedBytes -= mapping.data.length;
+        return true;
+    }
+
+    @Override
+    public synchronized void put(byte[] bytes, long dest) {
+        Mapping mapping = find(dest, bytes.length, PROT_WRITE);
+        System.arraycopy(bytes, 0, mapping.data, mapping.offsetOf(dest), bytes.length);
+        written(WRITE_PUT, dest, bytes.length);
+    }
+
+    @Override
+    public synchronized byte[] get(long src, int length) {
+        Mapping mapping = find(src, length, PROT_READ);
+        return Arrays.copyOfRange(mapping.data, mapping.offsetOf(src), mapping.offsetOf(src) + length);
+    }
+
+    @Override
+    public synchronized ByteBuffer view(long address, int length) {
+        Mapping mapping = find(address, length, 0);
+        return ByteBuffer.wrap(mapping.data, mapping.offsetOf(address), length).slice();
+    }
+
+    @Override
+    public synchronized long getLong(long address) {
+        Mapping mapping = find(address, 8, PROT_READ);
+        return mapping.buffer.getLong(mapping.offsetOf(address));
+    }
+
+    @Override
+    public synchronized int getInt(long address) {
+        Mapping mapping = find(address, 4, PROT_READ);
+        return mapping.buffer.getInt(mapping.offsetOf(address));
+    }
+
+    @Override
+    public synchronized long getLongAtomic(long address) {
+        if ((address & 7) != 0)
+            throw new Fault("Unaligned atomic read at " + addrHex(address));
+        return getLong(address);
+    }
+
+    @Override
+    public synchronized void putLong(long address, long value) {
+        Mapping mapping = find(address, 8, PROT_WRITE);
+        mapping.buffer.putLong(mapping.offsetOf(address), value);
+        written(WRITE_PUT, address, 8);
+    }
+
+    @Override
+    public synchronized void putInt(long address, int value) {
+        Mapping mapping = find(address, 4, PROT_WRITE);
+        mapping.buffer.putInt(mapping.offsetOf(address), value);
+        written(WRITE_PUT, address, 4);
+    }
+
+    @Override
+    public synchronized boolean unprotect(long address, long length) {
+        return protect(address, length, PROT_READ | PROT_WRITE | PROT_EXEC);
+    }
+
+    /**
+     * Change the protection of the pages containing the given range, like mprotect.
+     *
+     * @param protection Any combination of {@link #PROT_READ}, {@link #PROT_WRITE} and
+     *                   {@link #PROT_EXEC}
+     * @return false if any of the pages is not mapped, nothing is changed in this case
+     */
+    public synchronized boolean protect(long address, long length, int protection) {
+        protectCount++;
+        long start = address & -PAGE_SIZE;
+        long end = pageAlign(address + length);
+        for (long page = start; page < end; page += PAGE_SIZE) {
+            if (mappingOf(page) == null)
+                return false;
+        }
+        for (long page = start; page < end; page += PAGE_SIZE) {
+            Mapping mapping = mappingOf(page);
+            mapping.protections[mapping.offsetOf(page) / PAGE_SIZE] = protection;
+        }
+        return true;
+    }
+
+    /**
+     * @return The protection of the page containing the given address, or -1 if it is not mapped
+     */
+    public synchronized int getProtection(long address) {
+        Mapping mapping = mappingOf(address);
+        return mapping == null ? -1 : mapping.protections[mapping.offsetOf(address) / PAGE_SIZE];
+    }
+
+    /**
+     * Works like the JNI implementation: every run of adjacent pages is unprotected with a
+     * single mprotect call. The payloads are written in the given order, patches following each
+     * other directly in a contiguous range share an instruction cache flush.
+     */
+    @Override
+    public synchronized boolean patch(final long[] dests, byte[][] payloads) {
+        if (dests.length == 0)
+            return true;
+        Integer[] order = new Integer[dests.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(dests[a], dests[b]);
+            }
+        });
+
+        long start = dests[order[0]] & -PAGE_SIZE;
+        long end = start;
+        for (int i = 0; i <= order.length; i++) {
+            if (i < order.length && (dests[order[i]] & -PAGE_SIZE) <= end) {
+                end = Math.max(end, pageAlign(dests[order[i]] + payloads[order[i]].length));
+                continue;
+            }
+            if (end > start && !unprotect(start, end - start))
+                return false;
+            if (i < order.length) {
+                start = dests[order[i]] & -PAGE_SIZE;
+                end = pageAlign(dests[order[i]] + payloads[order[i]].length);
+            }
+        }
+
+        // Written in the order of the caller, sorting is only needed to merge the mprotect calls
+        long flushStart = dests[0];
+        long flushEnd = flushStart;
+        for (int i = 0; i < dests.length; i++) {
+            if (dests[i] < flushStart || dests[i] > flushEnd) {
+                cacheFlushCount++;
+                flushStart = dests[i];
+                flushEnd = flushStart;
+            }
+            Mapping mapping = find(dests[i], payloads[i].length, PROT_WRITE);
+            System.arraycopy(payloads[i], 0, mapping.data, mapping.offsetOf(dests[i]), payloads[i].length);
+            written(WRITE_PATCH, dests[i], payloads[i].length);
+            flushEnd = Math.max(flushEnd, dests[i] + payloads[i].length);
+        }
+        cacheFlushCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized void copy(long src, long dst, int length) {
+        Mapping from = find(src, length, PROT_READ);
+        Mapping to = find(dst, length, PROT_WRITE);
+        System.arraycopy(from.data, from.offsetOf(src), to.data, to.offsetOf(dst), length);
+        written(WRITE_COPY, dst, length);
+    }
+
+    /**
+     * @return The number of mappings that are currently mapped
+     */
+    public synchronized int getMappingCount() {
+        return mappings.size();
+    }
+
+    public synchronized long getMapCount() {
+        return mapCount;
+    }
+
+    public synchronized long getUnmapCount() {
+        return unmapCount;
+    }
+
+    /**
+     * @return The size of all mappings that are currently mapped, in bytes
+     */
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    public synchronized long getPeakMappedBytes() {
+        return peakMappedBytes;
+    }
+
+    /**
+     * @return The number of mprotect calls, including those made by {@link #patch(long[], byte[][])}
+     */
+    public synchronized long getProtectCount() {
+        return protectCount;
+    }
+
+    public synchronized long getCacheFlushCount() {
+        return cacheFlushCount;
+    }
+
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Reset all counters, so that the following operations can be measured on their own. The
+     * peak mapped bytes start over at the currently mapped bytes.
+     */
+    public synchronized void resetCounters() {
+        mapCount = 0;
+        unmapCount = 0;
+        peakMappedBytes = mappedBytes;
+        protectCount = 0;
+        cacheFlushCount = 0;
+        writeCount = 0;
+        bytesWritten = 0;
+    }
+
+    public synchronized void setLogWrites(boolean logWrites) {
+        this.logWrites = logWrites;
+    }
+
+    /**
+     * @return The writes logged since the last {@link #clearWrites()}, oldest first
+     */
+    public synchronized List<Write> getWrites() {
+        return new ArrayList<>(writes);
+    }
+
+    public synchronized void clearWrites() {
+        writes.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SimulatedMemoryBackend{mappings=" + mappings.size() +
+                ", mappedBytes=" + mappedBytes +
+                ", peakMappedBytes=" + peakMappedBytes +
+                ", maps=" + mapCount +
+                ", unmaps=" + unmapCount +
+                ", mprotects=" + protectCount +
+                ", cacheFlushes=" + cacheFlushCount +
+                ", writes=" + writeCount +
+                ", bytesWritten=" + bytesWritten + "}";
+    }
+
+    private void written(int kind, long address, int length) {
+        writeCount++;
+        bytesWritten += length;
+        if (logWrites) {
+            writes.add(new Write(kind, address, length));
+        }
+    }
+
+    private Mapping mappingOf(long address) {
+        Map.Entry<Long, Mapping> entry = mappings.floorEntry(address);
+        if (entry == null || address >= entry.getKey() + entry.getValue().data.length)
+            return null;
+        return entry.getValue();
+    }
+
+    private Mapping find(long address, int length, int protection) {
+        Mapping mapping = mappingOf(address);
+        if (mapping == null || length < 0 || mapping.offsetOf(address) + (long) length > mapping.data.length)
+            throw new Fault("Access to unmapped memory at " + addrHex(address) + ", length " + length);
+        for (int page = mapping.offsetOf(address) / PAGE_SIZE;
+             length > 0 && page <= (mapping.offsetOf(address) + length - 1) / PAGE_SIZE; page++) {
+            if ((mapping.protections[page] & protection) != protection)
+                throw new Fault("Access to protected memory at " + addrHex(mapping.address + page * PAGE_SIZE));
+        }
+        return mapping;
+    }
+
+    private static String addrHex(long address) {
+        return "0x" + Long.toHexString(address);
+    }
+
+    private static long pageAlign(long length) {
+        return (length + PAGE_SIZE - 1) & -PAGE_SIZE;
+    }
+
+    private static final class Mapping {
+        private final long address;
+        private final byte[] data;
+        private final ByteBuffer buffer;
+        private final int[] protections;
+
+        private Mapping(long address, int size, int protection) {
+            this.address = address;
+            this.data = new byte[size];
+            this.buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            this.protections = new int[size / PAGE_SIZE];
+            Arrays.fill(protections, protection);
+        }
+
+        private int offsetOf(long address) {
+            return (int) (address - this.address);
+        }
+    }
+
+    /**
+     * A write to simulated memory.
+     */
+    public static final class Write {
+        public final int kind;
+        public final long address;
+        public final int length;
+
+        private Write(int kind, long address, int length) {
+            this.kind = kind;
+            this.address = address;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return (kind == WRITE_PATCH ? "patch " : kind == WRITE_COPY ? "copy " : "put ") +
+                    addrHex(address) + " " + length;
+        }
+    }
+
+    /**
+     * Thrown where the real memory access would crash the process.
+     */
+    public static final class Fault extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public Fault(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.larma.arthook;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.larma.arthook.instrs.Arm64;
+import de.larma.arthook.instrs.InstructionHelper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes hook pages into a {@link SimulatedMemoryBackend}.
+ */
+public class HookPageTest {
+    private static final int QUICK_COMPILED_CODE_SIZE = 64;
+    private static final SimulatedMemoryBackend MEMORY = new SimulatedMemoryBackend();
+
+    static {
+        Memory.setBackend(MEMORY);
+    }
+
+    private static final Slab ART_METHODS = new Slab(64, 8);
+
+    private final InstructionHelper instructionHelper = new Arm64();
+    private final List<Object> methods = new ArrayList<>();
+    private long originalAddress;
+    private long targetAddress;
+    private HookPage page;
+
+    @Before
+    public void setUp() {
+        originalAddress = Memory.map(QUICK_COMPILED_CODE_SIZE);
+        targetAddress = Memory.map(QUICK_COMPILED_CODE_SIZE);
+        page = new HookPage(instructionHelper, originalAddress, QUICK_COMPILED_CODE_SIZE);
+    }
+
+    @Test
+    public void setEnabledChangesActiveCode() {
+        List<ArtMethod> sources = addHooks(2);
+        assertTrue(page.update() && page.activate());
+        long active = instructionHelper.toMem(page.getCallHook());
+        int activeSize = page.getSize();
+        byte[] before = Memory.get(active, activeSize);
+
+        // Written as a table, but never activated
+        addHooks(HookPage.TABLE_DISPATCH_THRESHOLD);
+        page.relocate();
+        assertTrue(page.update());
+        long written = instructionHelper.toMem(page.getCallHook());
+        byte[] writtenCode = Memory.get(written, page.getSize());
+
+        assertTrue(page.setEnabled(sources.get(0), false));
+        assertArrayEquals(writtenCode, Memory.get(written, writtenCode.length));
+        // Only the lowest byte of the enabled word changes from 1 to 0
+        assertEquals(1, countDifferences(before, Memory.get(active, activeSize)));
+    }
+
+    @Test
+    public void retiredBlocksAreReclaimed() {
+        ExecutableArena arena = Memory.getExecutableArena();
+        addHooks(1);
+        assertTrue(page.update() && page.activate());
+        // Hooking methods one at a time moves the page every time, up to a table larger than
+        // MAX_BLOCK_SIZE which gets a mapping of its own
+        List<ArtMethod> sources = new ArrayList<>();
+        int maxCapacity = 0;
+        long peakMappedBytes = 0;
+        for (int i = 0; i < 100; i++) {
+            sources.addAll(addHooks(1));
+            rewrite();
+            maxCapacity = Math.max(maxCapacity, Memory.capacityOfExecutable(page.getSize()));
+            peakMappedBytes = Math.max(peakMappedBytes, arena.getMappedBytes());
+            collectEvery(10, i);
+            assertTrue(arena.getRetiredBytes() <= 10L * maxCapacity);
+        }
+        assertTrue(maxCapacity > ExecutableArena.MAX_BLOCK_SIZE);
+        for (int i = 0; i < sources.size(); i++) {
+            page.removeHook(sources.get(i));
+            rewrite();
+            collectEvery(10, i);
+            assertTrue(arena.getRetiredBytes() <= 10L * maxCapacity);
+        }
+        System.gc();
+        arena.reclaim();
+        assertEquals(0, arena.getRetiredBytes());
+        // Blocks with a mapping of their own are unmapped
+        assertTrue(arena.getMappedBytes() < peakMappedBytes);
+    }
+
+    private void rewrite() {
+        page.relocate();
+        assertTrue(page.update() && page.activate());
+    }
+
+    private static void collectEvery(int iterations, int i) {
+        if (i % iterations == iterations - 1) {
+            System.gc();
+            Memory.getExecutableArena().reclaim();
+        }
+    }
+
+    private List<ArtMethod> addHooks(int count) {
+        List<ArtMethod> sources = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ArtMethod src = newArtMethod(originalAddress);
+            page.addHook(new HookPage.Hook(src, newArtMethod(targetAddress)));
+            sources.add(src);
+        }
+        return sources;
+    }
+
+    private ArtMethod newArtMethod(long entryPoint) {
+        Object method = new Object();
+        // Interned weakly, so the key has to stay alive as long as the test
+        methods.add(method);
+        ArtMethod artMethod = ArtMethod.intern(method, new ArtMethod(method, ART_METHODS.allocate()));
+        artMethod.setEntryPointFromQuickCompiledCode(instructionHelper.toPC(entryPoint));
+        return artMethod;
+    }
+
+    private static int countDifferences(byte[] a, byte[] b) {
+        int differences = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                differences++;
+            }
+        }
+        return differences;
+    }
+}
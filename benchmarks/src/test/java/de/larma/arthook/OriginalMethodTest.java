@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.larma.arthook;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Runs the lookup of {@link OriginalMethod}s on the host. No hook page is written, the hooks are
+ * called directly like the hook page would call them.
+ */
+public class OriginalMethodTest {
+    private static OriginalMethod found;
+
+    private Method original;
+    private Method backup;
+    private Method hook;
+    private ArtMethod artMethod;
+
+    public static int original(int x) {
+        return x + 1;
+    }
+
+    public static int backup(int x) {
+        return x + 1;
+    }
+
+    public static int hook(int x) {
+        found = OriginalMethod.byStack();
+        return found.<Integer>invoke(null, x) * 2;
+    }
+
+    @Before
+    public void setUp() throws NoSuchMethodException {
+        original = OriginalMethodTest.class.getDeclaredMethod("original", int.class);
+        backup = OriginalMethodTest.class.getDeclaredMethod("backup", int.class);
+        hook = OriginalMethodTest.class.getDeclaredMethod("hook", int.class);
+        // Any object will do as ArtMethod, its fields are never accessed
+        artMethod = ArtMethod.intern(original, new ArtMethod(original, new Object()));
+        found = null;
+    }
+
+    @After
+    public void tearDown() {
+        HookMetrics.ENABLED = false;
+    }
+
+    @Test
+    public void byStackFindsHookWithoutBridge() {
+        OriginalMethod stored = OriginalMethod.store(original, backup, hook, hook, null, null);
+        try {
+            assertNull(OriginalMethod.current());
+            assertEquals(12, hook(5));
+            assertSame(stored, found);
+            assertSame(stored, OriginalMethod.byOriginal(original));
+        } finally {
+            OriginalMethod.removeLayer(stored);
+        }
+        assertNull(OriginalMethod.byOriginal(original));
+    }
+
+    @Test
+    public void hookWithoutBridgeOnlyTimesOriginal() {
+        HookMetrics.ENABLED = true;
+        OriginalMethod stored = OriginalMethod.store(original, backup, hook, hook, null, null);
+        try {
+            hook(5);
+            HookMetrics metrics = HookMetrics.get(artMethod);
+            assertEquals(1, metrics.getOriginal().getCount());
+            assertEquals(0, metrics.getReplacement().getCount());
+        } finally {
+            OriginalMethod.removeLayer(stored);
+        }
+        assertNull(HookMetrics.get(artMethod));
+    }
+
+    @Test
+    public void noMetricsWhileDisabled() {
+        OriginalMethod stored = OriginalMethod.store(original, backup, hook, hook, null, null);
+        try {
+            hook(5);
+            assertNull(HookMetrics.get(artMethod));
+        } finally {
+            OriginalMethod.removeLayer(stored);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook.decoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decodes a trace file written by de.larma.arthook.MethodTracer.
+ * <p/>
+ * Usage: <code>TraceDecoder [--timeline | --folded] trace-file</code>
+ * <ul>
+ * <li><code>--timeline</code> (default) prints every call per method: start (relative to the
+ * start of the trace), duration, thread and the first two argument words</li>
+ * <li><code>--folded</code> prints the self time in nanoseconds per stack in the folded format
+ * used by flame graph tools</li>
+ * </ul>
+ */
+public class TraceDecoder {
+    private static final long MAGIC = 0x4543415254545241L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int DICTIONARY_SIZE = 64 * 1024;
+    private static final int REGION_HEADER_SIZE = 16;
+    private static final int EVENT_SIZE = 32;
+
+    private static final int ENTER = 1;
+    private static final int EXIT = 2;
+    private static final int ENTER_ORIGINAL = 3;
+    private static final int EXIT_ORIGINAL = 4;
+
+    private final Map<Integer, String> names = new HashMap<>();
+    private final List<Call> calls = new ArrayList<>();
+    private final Map<String, Long> folded = new TreeMap<>();
+    private long startTime;
+
+    public static void main(String[] args) throws IOException {
+        boolean foldedOutput = false;
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("--folded")) {
+                foldedOutput = true;
+            } else if (arg.equals("--timeline")) {
+                foldedOutput = false;
+            } else {
+                path = arg;
+            }
+        }
+        if (path == null) {
+            System.err.println("Usage: TraceDecoder [--timeline | --folded] trace-file");
+            System.exit(1);
+        }
+        TraceDecoder decoder = new TraceDecoder();
+        decoder.read(new File(path));
+        if (foldedOutput) {
+            decoder.printFolded(System.out);
+        } else {
+            decoder.printTimeline(System.out);
+        }
+    }
+
+    public void read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getLong(0) != MAGIC)
+            throw new IOException("Not a trace file: " + file);
+        if (buffer.getInt(8) != VERSION)
+            throw new IOException("Unsupported trace version " + buffer.getInt(8));
+        int threads = buffer.getInt(12);
+        int eventsPerThread = buffer.getInt(16);
+        startTime = buffer.getLong(24);
+        readDictionary(buffer);
+        long regionSize = REGION_HEADER_SIZE + (long) EVENT_SIZE * eventsPerThread;
+        for (int i = 0; i < threads; i++) {
+            readRegion(buffer, (int) (HEADER_SIZE + DICTIONARY_SIZE + i * regionSize), eventsPerThread);
+        }
+    }
+
+    private void readDictionary(MappedByteBuffer buffer) {
+        int offset = HEADER_SIZE;
+        while (offset + 6 <= HEADER_SIZE + DICTIONARY_SIZE) {
+            int id = buffer.getInt(offset);
+            if (id == 0) {
+                break;
+            }
+            byte[] name = new byte[buffer.getShort(offset + 4) & 0xFFFF];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = buffer.get(offset + 6 + i);
+            }
+            names.put(id, new String(name, Charset.forName("UTF-8")));
+            offset += 6 + name.length;
+        }
+    }
+
+    private void readRegion(MappedByteBuffer buffer, int offset, int eventsPerThread) {
+        long thread = buffer.getLong(offset);
+        long written = buffer.getLong(offset + 8);
+        if (written == 0) {
+            return;
+        }
+        // The oldest event of a full buffer might have been overwritten partially
+        long first = written > eventsPerThread ? written - eventsPerThread + 1 : 0;
+        Deque<Call> stack = new ArrayDeque<>();
+        for (long i = first; i < written; i++) {
+            int event = offset + REGION_HEADER_SIZE + (int) (i % eventsPerThread) * EVENT_SIZE;
+            long time = buffer.getLong(event);
+            int id = buffer.getInt(event + 8);
+            int type = buffer.getInt(event + 12);
+            if (type == ENTER || type == ENTER_ORIGINAL) {
+                Call call = new Call(thread, id, type == ENTER_ORIGINAL, time);
+                call.arg0 = buffer.getLong(event + 16);
+                call.arg1 = buffer.getLong(event + 24);
+                call.stack = (stack.isEmpty() ? "thread-" + thread : stack.peek().stack) + ";" + nameOf(call);
+                stack.push(call);
+            } else if (type == EXIT || type == EXIT_ORIGINAL) {
+                if (!containsCall(stack, id, type == EXIT_ORIGINAL)) {
+                    // Entered before the oldest event still in the buffer
+                    continue;
+                }
+                Call call;
+                do {
+                    call = stack.pop();
+                    finish(call, time, stack.peek());
+                } while (call.id != id || call.original != (type == EXIT_ORIGINAL));
+            }
+        }
+        // Calls still running when the trace ended are not reported
+    }
+
+    private static boolean containsCall(Deque<Call> stack, int id, boolean original) {
+        for (Call call : stack) {
+            if (call.id == id && call.original == original) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void finish(Call call, long time, Call caller) {
+        call.duration = time - call.start;
+        calls.add(call);
+        long self = call.duration - call.childTime;
+        Long total = folded.get(call.stack);
+        folded.put(call.stack, (total == null ? 0 : total) + self);
+        if (caller != null) {
+            caller.childTime += call.duration;
+        }
+    }
+
+    private String nameOf(Call call) {
+        String name = names.get(call.id);
+        if (name == null) {
+            name = "#" + call.id;
+        }
+        return call.original ? name + " (original)" : name;
+    }
+
+    public void printTimeline(PrintStream out) {
+        Map<String, List<Call>> byMethod = new TreeMap<>();
+        for (Call call : calls) {
+            String name = nameOf(call);
+            List<Call> methodCalls = byMethod.get(name);
+            if (methodCalls == null) {
+                methodCalls = new ArrayList<>();
+                byMethod.put(name, methodCalls);
+            }
+            methodCalls.add(call);
+        }
+        for (Map.Entry<String, List<Call>> entry : byMethod.entrySet()) {
+            out.println(entry.getKey() + ":");
+            List<Call> methodCalls = entry.getValue();
+            Collections.sort(methodCalls);
+            for (Call call : methodCalls) {
+                out.println("  start=" + (call.start - startTime) + "ns duration=" + call.duration +
+                        "ns thread=" + call.thread + " args=" + call.arg0 + "," + call.arg1);
+            }
+        }
+    }
+
+    public void printFolded(PrintStream out) {
+        for (Map.Entry<String, Long> entry : folded.entrySet()) {
+            out.println(entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    private static class Call implements Comparable<Call> {
+        final long thread;
+        final int id;
+        final boolean original;
+        final long start;
+        long duration;
+        long childTime;
+        long arg0;
+        long arg1;
+        String stack;
+
+        Call(long thread, int id, boolean original, long start) {
+            this.thread = thread;
+            this.id = id;
+            this.original = original;
+            this.start = start;
+        }
+
+        @Override
+        public int compareTo(Call other) {
+            return Long.compare(start, other.start);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook.decoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceDecoderTest {
+    // The layout written by de.larma.arthook.MethodTracer, which can't be used on the host
+    private static final long MAGIC = 0x4543415254545241L;
+    private static final int HEADER_SIZE = 64;
+    private static final int DICTIONARY_SIZE = 64 * 1024;
+    private static final int REGION_HEADER_SIZE = 16;
+    private static final int EVENT_SIZE = 32;
+    private static final int ENTER = 1;
+    private static final int EXIT = 2;
+    private static final int ENTER_ORIGINAL = 3;
+    private static final int EXIT_ORIGINAL = 4;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("TraceDecoderTest", ".trace");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void timeline() throws IOException {
+        TraceWriter trace = new TraceWriter(1, 8);
+        trace.define(1, "a.B.c");
+        trace.event(0, 1100, 1, ENTER, 7, 8);
+        trace.event(0, 1200, 1, ENTER_ORIGINAL, 0, 0);
+        trace.event(0, 1500, 1, EXIT_ORIGINAL, 0, 0);
+        trace.event(0, 1600, 1, EXIT, 0, 0);
+        String timeline = decode(trace, false);
+        assertTrue(timeline, timeline.contains("a.B.c:\n  start=100ns duration=500ns thread=42 args=7,8\n"));
+        assertTrue(timeline, timeline.contains("a.B.c (original):\n  start=200ns duration=300ns thread=42"));
+    }
+
+    @Test
+    public void foldedSelfTimes() throws IOException {
+        TraceWriter trace = new TraceWriter(1, 8);
+        trace.define(1, "a.B.c");
+        trace.define(2, "a.B.d");
+        trace.event(0, 1000, 1, ENTER, 0, 0);
+        trace.event(0, 1100, 2, ENTER, 0, 0);
+        trace.event(0, 1400, 2, EXIT, 0, 0);
+        trace.event(0, 2000, 1, EXIT, 0, 0);
+        assertEquals("thread-42;a.B.c 700\n" +
+                "thread-42;a.B.c;a.B.d 300\n", decode(trace, true));
+    }
+
+    @Test
+    public void unknownMethodUsesId() throws IOException {
+        TraceWriter trace = new TraceWriter(1, 8);
+        trace.event(0, 1000, 5, ENTER, 0, 0);
+        trace.event(0, 1010, 5, EXIT, 0, 0);
+        assertEquals("thread-42;#5 10\n", decode(trace, true));
+    }
+
+    @Test
+    public void wrappedRingBufferSkipsCallsEnteredBefore() throws IOException {
+        TraceWriter trace = new TraceWriter(1, 4);
+        trace.define(1, "a.B.c");
+        trace.define(2, "a.B.d");
+        // The ENTER of a.B.c is overwritten, the oldest remaining event might be torn
+        trace.event(0, 1000, 1, ENTER, 0, 0);
+        trace.event(0, 1100, 2, ENTER, 0, 0);
+        trace.event(0, 1200, 2, EXIT, 0, 0);
+        trace.event(0, 1300, 2, ENTER, 0, 0);
+        trace.event(0, 1350, 2, EXIT, 0, 0);
+        trace.event(0, 1400, 1, EXIT, 0, 0);
+        String folded = decode(trace, true);
+        assertEquals("thread-42;a.B.d 50\n", folded);
+    }
+
+    @Test
+    public void unfinishedCallsAreNotReported() throws IOException {
+        TraceWriter trace = new TraceWriter(2, 8);
+        trace.define(1, "a.B.c");
+        trace.event(0, 1000, 1, ENTER, 0, 0);
+        trace.event(1, 1000, 1, ENTER, 0, 0);
+        trace.event(1, 1100, 1, EXIT, 0, 0);
+        String folded = decode(trace, true);
+        assertEquals("thread-43;a.B.c 100\n", folded);
+        assertFalse(folded.contains("thread-42"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Files.write(file.toPath(), new byte[HEADER_SIZE]);
+        new TraceDecoder().read(file);
+    }
+
+    private String decode(TraceWriter trace, boolean folded) throws IOException {
+        Files.write(file.toPath(), trace.buffer.array());
+        TraceDecoder decoder = new TraceDecoder();
+        decoder.read(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream print = new PrintStream(out, true, "UTF-8");
+        if (folded) {
+            decoder.printFolded(print);
+        } else {
+            decoder.printTimeline(print);
+        }
+        return new String(out.toByteArray(), "UTF-8").replace(System.lineSeparator(), "\n");
+    }
+
+    /**
+     * Writes a trace of the given number of threads with ids 42, 43 and so on, which started at
+     * nanoTime 1000.
+     */
+    private static final class TraceWriter {
+        private final ByteBuffer buffer;
+        private final int eventsPerThread;
+        private final int regionSize;
+        private final long[] written;
+        private int dictionaryOffset = HEADER_SIZE;
+
+        TraceWriter(int threads, int eventsPerThread) {
+            this.eventsPerThread = eventsPerThread;
+            this.regionSize = REGION_HEADER_SIZE + EVENT_SIZE * eventsPerThread;
+            this.written = new long[threads];
+            buffer = ByteBuffer.allocate(HEADER_SIZE + DICTIONARY_SIZE + regionSize * threads)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putLong(0, MAGIC);
+            buffer.putInt(8, 1);
+            buffer.putInt(12, threads);
+            buffer.putInt(16, eventsPerThread);
+            buffer.putLong(24, 1000);
+            for (int i = 0; i < threads; i++) {
+                buffer.putLong(regionOffset(i), 42 + i);
+            }
+        }
+
+        private int regionOffset(int thread) {
+            return HEADER_SIZE + DICTIONARY_SIZE + thread * regionSize;
+        }
+
+        void define(int id, String name) throws IOException {
+            byte[] bytes = name.getBytes("UTF-8");
+            buffer.putInt(dictionaryOffset, id);
+            buffer.putShort(dictionaryOffset + 4, (short) bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                buffer.put(dictionaryOffset + 6 + i, bytes[i]);
+            }
+            dictionaryOffset += 6 + bytes.length;
+        }
+
+        void event(int thread, long time, int id, int type, long arg0, long arg1) {
+            int offset = regionOffset(thread);
+            int event = offset + REGION_HEADER_SIZE + (int) (written[thread] % eventsPerThread) * EVENT_SIZE;
+            buffer.putLong(event, time);
+            buffer.putInt(event + 8, id);
+            buffer.putInt(event + 12, type);
+            buffer.putLong(event + 16, arg0);
+            buffer.putLong(event + 24, arg1);
+            buffer.putLong(offset + 8, ++written[thread]);
+        }
+    }
+}
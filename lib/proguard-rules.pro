@@ -22,3 +22,17 @@
 -dontnote dalvik.system.VMRuntime
 -dontnote sun.misc.Unsafe
 
+
+# Generated by the ArtHook annotation processor and listed by name in
+# META-INF/services/de.larma.arthook.HookRegistry, the bridges are looked up by the names of
+# their hooks
+-keep interface de.larma.arthook.HookRegistry
+-keep class * implements de.larma.arthook.HookRegistry {
+    <init>();
+    public static <methods>;
+}
+
+# Hooks are only called through their hook pages, but may be renamed
+-keepclassmembers,allowobfuscation class * {
+    @de.larma.arthook.Hook <methods>;
+}
@@ -18,170 +18,857 @@ package de.larma.arthook;
 
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.larma.arthook.instrs.Arm32;
 import de.larma.arthook.instrs.Arm64;
 import de.larma.arthook.instrs.InstructionHelper;
 import de.larma.arthook.instrs.Thumb2;
 
+import static de.larma.arthook.DebugHelper.isLoggable;
 import static de.larma.arthook.DebugHelper.logd;
 import static de.larma.arthook.DebugHelper.logw;
 
 public final class ArtHook {
-    private static final Map<Long, HookPage> pages = new HashMap<>();
-    private static InstructionHelper INSTRUCTION_SET_HELPER;
+    private static final ConcurrentMap<Long, HookPage> pages = new ConcurrentHashMap<>();
+    private static final Map<ArtMethod, HookPage> hookedPages = new ConcurrentHashMap<>();
+    /**
+     * The registries of hook classes, null if a class has none. Guarded by itself.
+     */
+    private static final Map<Class<?>, HookRegistry> registries = new HashMap<>();
+    private static final Set<ClassLoader> indexedLoaders = new HashSet<>();
+    /**
+     * Writers of a HookPage hold the lock of its stripe, see {@link #lockOf(HookPage)}.
+     */
+    private static final ReentrantLock[] pageLocks = new ReentrantLock[16];
+    private static volatile InstructionHelper instructionSetHelper;
+    private static volatile HookPlanCache planCache;
 
     private ArtHook() {
     }
 
     static {
+        for (int i = 0; i < pageLocks.length; i++) {
+            pageLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * The instruction set is detected on first use, so that loading this class neither loads
+     * the native library nor looks into ART.
+     */
+    private static InstructionHelper instructionSetHelper() {
+        InstructionHelper helper = instructionSetHelper;
+        if (helper == null) {
+            synchronized (ArtHook.class) {
+                helper = instructionSetHelper;
+                if (helper == null) {
+                    instructionSetHelper = helper = detectInstructionSet();
+                }
+            }
+        }
+        return helper;
+    }
+
+    private static InstructionHelper detectInstructionSet() {
+        // Load the VersionHelper before, it is a phase of its own in the StartupReport
+        ArtMethod.getLayout();
+
+        long start = StartupReport.start(StartupReport.ARCH_DETECTION);
+        InstructionHelper helper = null;
         final List<Arch> archs = Arch.getArchitectures();
         for (Arch arch : archs) {
             switch (arch) {
                 case ARM32:
-                    INSTRUCTION_SET_HELPER = new Arm32();
+                    helper = new Arm32();
                     break;
                 case THUMB2:
-                    INSTRUCTION_SET_HELPER = new Thumb2();
+                    helper = new Thumb2();
                     break;
                 case ARM64:
-                    INSTRUCTION_SET_HELPER = new Arm64();
+                    helper = new Arm64(Native.hasAtomics());
                     break;
                 case x86:
                     // TODO: Support x86
-                    // INSTRUCTION_SET_HELPER = new X86();
+                    // helper = new X86();
                     break;
                 case x86_64:
                     // TODO: Support x86_64
-                    // INSTRUCTION_SET_HELPER = new X64();
+                    // helper = new X64();
                     break;
             }
 
-            if (INSTRUCTION_SET_HELPER != null) {
+            if (helper != null) {
                 break;
             }
         }
 
-        if (INSTRUCTION_SET_HELPER != null) {
-            logd("ArtHook", "Using: " + INSTRUCTION_SET_HELPER.getName());
-        } else {
+        if (helper == null) {
             throw new LibArtError("Instruction set not supported: " + archs);
         }
+        if (isLoggable(Log.DEBUG)) {
+            logd("ArtHook", "Using: " + helper.getName());
+        }
+        StartupReport.record(StartupReport.ARCH_DETECTION, start);
+        return helper;
+    }
+
+    /**
+     * Use the given cache to find the targets of hooks planned on an earlier start, and to
+     * remember the plan of every hook installed from now on. Call {@link HookPlanCache#save()}
+     * once all hooks are installed:
+     * <pre>
+     * HookPlanCache cache = HookPlanCache.open(new File(context.getCacheDir(), "arthook.plan"),
+     *         HookPlanCache.keyOf(new File(context.getApplicationInfo().sourceDir)));
+     * ArtHook.setPlanCache(cache);
+     * ArtHook.hook(MyHooks.class);
+     * cache.save();
+     * </pre>
+     *
+     * @param cache The cache to use, or null to not use any
+     */
+    public static void setPlanCache(HookPlanCache cache) {
+        planCache = cache;
     }
 
-    private static HookPage handleHookPage(ArtMethod original, ArtMethod replacement) {
-        long originalEntryPoint = INSTRUCTION_SET_HELPER.toMem(
+    /**
+     * @return How long initializing ArtHook took so far
+     */
+    public static StartupReport startupReport() {
+        return StartupReport.snapshot();
+    }
+
+    private static HookPage getHookPage(ArtMethod original) {
+        long originalEntryPoint = instructionSetHelper().toMem(
                 original.getEntryPointFromQuickCompiledCode());
-        if (!pages.containsKey(originalEntryPoint)) {
-            pages.put(originalEntryPoint, new HookPage(INSTRUCTION_SET_HELPER, originalEntryPoint,
-                    getQuickCompiledCodeSize(original)));
+        HookPage page = pages.get(originalEntryPoint);
+        if (page == null) {
+            HookPage newPage = new HookPage(instructionSetHelper(), originalEntryPoint,
+                    getQuickCompiledCodeSize(original));
+            page = pages.putIfAbsent(originalEntryPoint, newPage);
+            if (page == null) {
+                page = newPage;
+            }
         }
+        return page;
+    }
 
-        HookPage page = pages.get(originalEntryPoint);
+    private static int stripeOf(HookPage page) {
+        long address = page.getOriginalAddress();
+        return (int) ((address >>> 4) ^ (address >>> 16)) & (pageLocks.length - 1);
+    }
+
+    private static ReentrantLock lockOf(HookPage page) {
+        return pageLocks[stripeOf(page)];
+    }
+
+    /**
+     * Lock all given pages. Stripes are always locked in the same order, so this can't deadlock.
+     *
+     * @return The stripes that were locked, to be passed to {@link #unlock(boolean[])}
+     */
+    private static boolean[] lock(Collection<HookPage> pages) {
+        boolean[] stripes = new boolean[pageLocks.length];
+        for (HookPage page : pages) {
+            stripes[stripeOf(page)] = true;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[i]) pageLocks[i].lock();
+        }
+        return stripes;
+    }
+
+    private static void unlock(boolean[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            if (stripes[i]) pageLocks[i].unlock();
+        }
+    }
+
+    private static boolean handleHookPage(HookPage page, ArtMethod original, ArtMethod replacement) {
         page.addHook(new HookPage.Hook(original, replacement));
-        page.update();
-        return page;
+        // Never rewrite code other threads might be executing
+        page.relocate();
+        if (!page.update()) {
+            page.removeHook(original);
+            return false;
+        }
+        return true;
     }
 
     public static void hook(Class clazz) {
-        for (Method method : Assertions.argumentNotNull(clazz, "clazz").getDeclaredMethods()) {
+        HookRegistry registry = findRegistry(Assertions.argumentNotNull(clazz, "clazz"));
+        if (registry != null) {
+            hook(clazz, registry);
+            return;
+        }
+        List<PlannedHook> hooks = new ArrayList<>();
+        for (Method method : clazz.getDeclaredMethods()) {
             if (method.isAnnotationPresent(Hook.class)) {
                 try {
-                    hook(method);
+                    hooks.add(plan(method));
                 } catch (RuntimeException e) {
                     logw(e);
                 }
             }
         }
+        install(hooks);
+    }
+
+    /**
+     * Hook all methods of the given class described by the registry, without looking at
+     * annotations.
+     */
+    public static void hook(Class<?> clazz, HookRegistry registry) {
+        List<PlannedHook> hooks = new ArrayList<>();
+        for (HookDescriptor descriptor : Assertions.argumentNotNull(registry, "registry").getHooks()) {
+            try {
+                Method method = descriptor.resolveHook(clazz);
+                // Only targets unknown at build time are searched
+                Object target = descriptor.getKind() == HookDescriptor.UNKNOWN ? findPlannedTarget(method) : null;
+                if (target == null) {
+                    target = descriptor.resolveTarget(method);
+                }
+                Method bridge = descriptor.isBridged() ? descriptor.resolveBridge(registry.getClass()) : null;
+                PlannedHook hook = plan(target, method, bridge, descriptor.getBackupIdentifier());
+                if (bridge != null) {
+                    hook.descriptor = descriptor;
+                }
+                hooks.add(hook);
+            } catch (Exception e) {
+                logw(new RuntimeException("Can't install " + descriptor, e));
+            }
+        }
+        install(hooks);
+    }
+
+    /**
+     * @return The {@link HookRegistry} generated for the given class, or null if there is none
+     */
+    private static HookRegistry findRegistry(Class<?> clazz) {
+        ClassLoader loader = clazz.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        synchronized (registries) {
+            if (indexedLoaders.add(loader)) {
+                loadRegistryIndex(loader);
+            }
+            if (!registries.containsKey(clazz)) {
+                // Not listed if the build did not package the index, try the generated name once
+                registries.put(clazz, newRegistry(clazz.getName() + HookRegistry.SUFFIX, loader, false));
+            }
+            return registries.get(clazz);
+        }
+    }
+
+    /**
+     * Find all registries listed in the {@link HookRegistry#INDEX} of the given class loader,
+     * without depending on the names of the hook classes, which might be obfuscated.
+     */
+    private static void loadRegistryIndex(ClassLoader loader) {
+        try {
+            Enumeration<URL> indexes = loader.getResources(HookRegistry.INDEX);
+            while (indexes.hasMoreElements()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(indexes.nextElement().openStream(),
+                        "UTF-8"));
+                try {
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        line = line.trim();
+                        HookRegistry registry = line.isEmpty() ? null : newRegistry(line, loader, true);
+                        if (registry != null) {
+                            registries.put(registry.getHookClass(), registry);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            logw(new RuntimeException("Can't read " + HookRegistry.INDEX, e));
+        }
+    }
+
+    /**
+     * @param listed Whether the registry is listed in an index and expected to exist
+     */
+    private static HookRegistry newRegistry(String name, ClassLoader loader, boolean listed) {
+        try {
+            return (HookRegistry) Class.forName(name, true, loader).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            if (listed) {
+                logw(new RuntimeException("Can't load " + name, e));
+            }
+            return null;
+        } catch (Exception e) {
+            logw(new RuntimeException("Can't load " + name, e));
+            return null;
+        }
+    }
+
+    /**
+     * Hook all given methods (which must have the @Hook annotation) at once.
+     * <p/>
+     * All targets are resolved before anything is written, so if one of them can't be found,
+     * no hook is installed at all. Afterwards every affected HookPage is written once and all
+     * original methods are patched in a single pass.
+     *
+     * @return The OriginalMethod for each of the methods that could be hooked
+     */
+    public static Map<Method, OriginalMethod> hookAll(Collection<Method> methods) {
+        List<PlannedHook> hooks = new ArrayList<>();
+        for (Method method : Assertions.argumentNotNull(methods, "methods")) {
+            hooks.add(plan(method));
+        }
+        return install(hooks);
     }
 
     public static OriginalMethod hook(Method method) {
+        return install(Collections.singletonList(plan(method))).get(method);
+    }
+
+    private static PlannedHook plan(Method method) {
         if (!method.isAnnotationPresent(Hook.class))
             throw new IllegalArgumentException("method must have @Hook annotation");
 
-        Object original;
-        try {
-            original = findTargetMethod(method);
-        } catch (Throwable e) {
-            throw new RuntimeException("Can't find original method (" + method.getName() + ")", e);
+        Object original = findPlannedTarget(method);
+        if (original == null) {
+            try {
+                original = findTargetMethod(method);
+            } catch (Throwable e) {
+                throw new RuntimeException("Can't find original method (" + method.getName() + ")", e);
+            }
         }
         String ident = null;
         if (method.isAnnotationPresent(BackupIdentifier.class)) {
             ident = method.getAnnotation(BackupIdentifier.class).value();
         }
-        return hook(original, method, ident);
+        return plan(original, method, null, ident);
     }
 
-    public static OriginalMethod hook(Method originalMethod, Method replacementMethod, String backupIdentifier) {
-        return hook((Object) originalMethod, replacementMethod, backupIdentifier);
+    /**
+     * @return The target of the given hook as remembered by the {@link HookPlanCache}, or null if
+     * it has to be searched
+     */
+    private static Object findPlannedTarget(Method hook) {
+        HookPlanCache cache = planCache;
+        HookPlanCache.Entry entry = cache != null ? cache.get(hook) : null;
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return entry.resolveTarget(hook);
+        } catch (Exception e) {
+            logw(new RuntimeException("Can't find planned target of " + entry, e));
+            return null;
+        }
     }
 
-    public static OriginalMethod hook(Object originalMethod, Method replacementMethod, String backupIdentifier) {
-        ArtMethod backArt;
+    /**
+     * @param bridge The bridge generated for the hook, see {@link HookDispatch}. If given, the
+     *               hook page jumps to it instead of the hook.
+     */
+    private static PlannedHook plan(Object originalMethod, Method replacementMethod, Method bridge,
+                                    String backupIdentifier) {
         if (originalMethod instanceof Method) {
-            backArt = hook((Method) originalMethod, replacementMethod);
+            checkHook((Method) originalMethod, replacementMethod);
         } else if (originalMethod instanceof Constructor) {
-            backArt = hook((Constructor<?>) originalMethod, replacementMethod);
-            backArt.convertToMethod();
+            checkHook((Constructor<?>) originalMethod, replacementMethod);
         } else {
             throw new RuntimeException("original method must be of type Method or Constructor");
         }
+        Method entry = bridge != null ? bridge : replacementMethod;
+        return new PlannedHook(originalMethod, replacementMethod, entry, backupIdentifier, resolve(originalMethod),
+                ArtMethod.of(entry));
+    }
+
+    private static Map<Method, OriginalMethod> install(List<PlannedHook> hooks) {
+        Set<ArtMethod> targets = new HashSet<>();
+        for (PlannedHook hook : hooks) {
+            if (!targets.add(hook.originalArt))
+                throw new IllegalArgumentException(hook.original + " can't be hooked more than once");
+        }
+        Set<HookPage> affectedPages = new LinkedHashSet<>();
+        Set<HookPage> failedPages;
+        boolean[] stripes = lockPages(hooks, affectedPages);
+        try {
+            for (PlannedHook hook : hooks) {
+                // If already hooked, the new hook becomes the topmost layer and calls the previous one
+                hook.replaced = hook.page.retarget(hook.originalArt, hook.replacementArt);
+                if (hook.replaced == null) {
+                    hook.page.addHook(new HookPage.Hook(hook.originalArt, hook.replacementArt));
+                }
+            }
+            // The originals have to be known before the first call of a hook
+            for (PlannedHook hook : hooks) {
+                OriginalMethod below = OriginalMethod.byOriginal(hook.original);
+                Method backup = below != null ? below.getBackup() : backup(hook.original, hook.originalArt);
+                hook.originalMethod = OriginalMethod.store(hook.original, backup, hook.replacement, hook.entry,
+                        hook.descriptor, hook.backupIdentifier);
+            }
+            failedPages = activate(affectedPages);
+            HookPlanCache cache = planCache;
+            for (PlannedHook hook : hooks) {
+                if (failedPages.contains(hook.page)) {
+                    OriginalMethod.removeLayer(hook.originalMethod);
+                    if (hook.replaced != null) {
+                        hook.page.retarget(hook.originalArt, hook.replaced.target);
+                    } else {
+                        hook.page.removeHook(hook.originalArt);
+                    }
+                } else {
+                    // Published while locked, so unhook never sees a hook without its page
+                    hookedPages.put(hook.originalArt, hook.page);
+                    if (cache != null) {
+                        cache.record(hook.replacement, hook.original, hook.page);
+                    }
+                }
+            }
+        } finally {
+            unlock(stripes);
+        }
 
+        Map<Method, OriginalMethod> originals = new LinkedHashMap<>();
+        for (PlannedHook hook : hooks) {
+            if (failedPages.contains(hook.page)) {
+                logw("Hooking " + hook.original + " failed");
+            } else {
+                originals.put(hook.replacement, hook.originalMethod);
+            }
+        }
+        return originals;
+    }
+
+    /**
+     * Find the pages of the given hooks and lock them. Pages are found before they are locked,
+     * meanwhile an unhook might have dropped a page or another thread might have hooked one of
+     * the methods on another page. Then the pages are looked up again.
+     *
+     * @param affectedPages Filled with the pages of the hooks
+     * @return The stripes that were locked, to be passed to {@link #unlock(boolean[])}
+     */
+    private static boolean[] lockPages(List<PlannedHook> hooks, Set<HookPage> affectedPages) {
+        while (true) {
+            affectedPages.clear();
+            for (PlannedHook hook : hooks) {
+                // A redirected method no longer points to the code of its page
+                HookPage page = hookedPages.get(hook.originalArt);
+                hook.page = page != null ? page : getHookPage(hook.originalArt);
+                affectedPages.add(hook.page);
+            }
+            boolean[] stripes = lock(affectedPages);
+            if (arePagesCurrent(hooks)) {
+                return stripes;
+            }
+            unlock(stripes);
+        }
+    }
+
+    /**
+     * Must be called while holding the locks of the pages of the given hooks.
+     */
+    private static boolean arePagesCurrent(List<PlannedHook> hooks) {
+        for (PlannedHook hook : hooks) {
+            HookPage hooked = hookedPages.get(hook.originalArt);
+            if (pages.get(hook.page.getOriginalAddress()) != hook.page || (hooked != null && hooked != hook.page)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write and activate the given pages, all at once if possible.
+     *
+     * @return The pages that could not be activated
+     */
+    private static Set<HookPage> activate(Collection<HookPage> pages) {
+        PatchBatch batch = new PatchBatch();
+        for (HookPage page : pages) {
+            // Never rewrite code other threads might be executing
+            page.relocate();
+            page.update(batch);
+        }
+        // The batch is written in order, so every page is in place before the first jump to it
+        for (HookPage page : pages) {
+            page.activate(batch);
+        }
+        Set<HookPage> failedPages = new HashSet<>();
+        long start = StartupReport.start(StartupReport.FIRST_PATCH);
+        boolean applied = batch.apply();
+        StartupReport.record(StartupReport.FIRST_PATCH, start);
+        if (applied) {
+            for (HookPage page : pages) {
+                page.activated();
+            }
+        } else {
+            // Find out which pages can't be written
+            for (HookPage page : pages) {
+                if (!page.update() || !page.activate()) {
+                    failedPages.add(page);
+                }
+            }
+        }
+        return failedPages;
+    }
+
+    /**
+     * Remove the hook of a method and restore the original method.
+     *
+     * @param method Either the hooked method, to remove all of its hooks, or a @Hook method, to
+     *               remove only this hook
+     * @return false if the method was not hooked or could not be restored
+     */
+    public static boolean unhook(Method method) {
+        Assertions.argumentNotNull(method, "method");
+        if (method.isAnnotationPresent(Hook.class)) {
+            OriginalMethod layer = OriginalMethod.byHook(method);
+            return layer != null && unhook(layer);
+        }
+        return unhook((Object) method);
+    }
+
+    public static boolean unhook(Constructor<?> constructor) {
+        return unhook((Object) Assertions.argumentNotNull(constructor, "constructor"));
+    }
+
+    /**
+     * @return The method hooked by the given @Hook method, or the method itself if it is no hook
+     */
+    private static Object resolveOriginal(Method method) {
+        if (method.isAnnotationPresent(Hook.class)) {
+            try {
+                return findTargetMethod(method);
+            } catch (Exception e) {
+                throw new RuntimeException("Can't find original method (" + method.getName() + ")", e);
+            }
+        }
+        return method;
+    }
+
+    private static boolean unhook(Object originalMethod) {
+        ArtMethod original = ArtMethod.of(originalMethod);
+        HookPage page = hookedPages.get(original);
+        if (page == null) {
+            return false;
+        }
+        ReentrantLock lock = lockOf(page);
+        lock.lock();
+        try {
+            if (hookedPages.get(original) != page) {
+                return false;
+            }
+            HookPage.Hook hook = page.removeHook(original);
+            if (page.isRedirect()) {
+                original.setEntryPointFromQuickCompiledCode(instructionSetHelper().toPC(page.getOriginalAddress()));
+            }
+            boolean result;
+            if (page.getHooksCount() == 0) {
+                result = page.deactivate();
+                if (result) {
+                    pages.remove(page.getOriginalAddress(), page);
+                }
+            } else {
+                page.relocate();
+                result = page.update() && page.activate();
+            }
+            if (!result) {
+                page.addHook(hook);
+                if (page.isRedirect()) {
+                    original.setEntryPointFromQuickCompiledCode(page.getCallHook());
+                }
+                return false;
+            }
+            hookedPages.remove(original);
+            OriginalMethod.remove(originalMethod);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a single hook of a method hooked more than once, the other hooks stay installed.
+     */
+    private static boolean unhook(OriginalMethod layer) {
+        Object originalMethod = layer.getOriginal();
+        ArtMethod original = ArtMethod.of(originalMethod);
+        HookPage page = hookedPages.get(original);
+        if (page == null) {
+            return false;
+        }
+        ReentrantLock lock = lockOf(page);
+        lock.lock();
+        try {
+            if (hookedPages.get(original) != page) {
+                return false;
+            }
+            OriginalMethod top = OriginalMethod.byTop(original);
+            if (top == layer && layer.getBelow() == null) {
+                return unhook(originalMethod);
+            }
+            if (top == layer) {
+                // The page has to jump to the layer below instead
+                HookPage.Hook hook = page.retarget(original, ArtMethod.of(layer.getBelow().getEntry()));
+                page.relocate();
+                if (!page.update() || !page.activate()) {
+                    page.retarget(original, hook.target);
+                    return false;
+                }
+            }
+            OriginalMethod.removeLayer(layer);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Temporarily disable or re-enable the hook of a method. While disabled, calls go to the
+     * original method directly.
+     * <p/>
+     * Unlike {@link #unhook(Method)} this does not rewrite any code, it only flips a single word
+     * that is checked by the hook page on every call.
+     *
+     * @param method Either the hooked method or the @Hook method replacing it
+     * @return false if the method is not hooked
+     */
+    public static boolean setEnabled(Method method, boolean enabled) {
+        return setEnabled(resolveOriginal(Assertions.argumentNotNull(method, "method")), enabled);
+    }
+
+    public static boolean setEnabled(Constructor<?> constructor, boolean enabled) {
+        return setEnabled((Object) Assertions.argumentNotNull(constructor, "constructor"), enabled);
+    }
+
+    private static boolean setEnabled(Object originalMethod, boolean enabled) {
+        if (instructionSetHelper().offsetOfTargetJumpEnabled() < 0) {
+            throw new UnsupportedOperationException("Enabling hooks is not supported on " + instructionSetHelper().getName());
+        }
+        ArtMethod original = ArtMethod.of(originalMethod);
+        HookPage page = hookedPages.get(original);
+        if (page == null) {
+            return false;
+        }
+        ReentrantLock lock = lockOf(page);
+        lock.lock();
+        try {
+            return hookedPages.get(original) == page && page.setEnabled(original, enabled);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param method Either the hooked method or the @Hook method replacing it
+     * @return How often the hook of the given method was called, or -1 if the method is not
+     * hooked. The count is kept by the hook page itself, so it is exact and does not cost a
+     * call into Java.
+     */
+    public static long getCallCount(Method method) {
+        return getCallCount(resolveOriginal(Assertions.argumentNotNull(method, "method")));
+    }
+
+    public static long getCallCount(Constructor<?> constructor) {
+        return getCallCount((Object) Assertions.argumentNotNull(constructor, "constructor"));
+    }
+
+    private static long getCallCount(Object originalMethod) {
+        HookPage.Hook hook = getInstalledHook(ArtMethod.of(originalMethod));
+        return hook == null ? -1 : hook.getCallCount();
+    }
+
+    /**
+     * @return The call counts of all hooked methods, see {@link #getCallCount(Method)}
+     */
+    public static Map<Member, Long> snapshotCounters() {
+        Map<Member, Long> counters = new LinkedHashMap<>();
+        for (ArtMethod original : hookedPages.keySet()) {
+            HookPage.Hook hook = getInstalledHook(original);
+            if (hook != null) {
+                counters.put((Member) original.associatedMethod, hook.getCallCount());
+            }
+        }
+        return counters;
+    }
+
+    private static HookPage.Hook getInstalledHook(ArtMethod original) {
+        HookPage page = hookedPages.get(original);
+        if (page == null) {
+            return null;
+        }
+        ReentrantLock lock = lockOf(page);
+        lock.lock();
+        try {
+            return page.getHook(original);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The latencies of all hooked methods, recorded while {@link HookMetrics#ENABLED}
+     * is set. The time spent in the replacement is only recorded for hooks called through a bridge,
+     * installed by {@link #hook(Class)} with a generated {@link HookRegistry}. For hooks installed
+     * by {@link #hook(Method)}, {@link #hookAll} or for a class without registry only the time
+     * spent in the original method is recorded.
+     */
+    public static Map<Member, HookMetrics> metrics() {
+        Map<Member, HookMetrics> metrics = new LinkedHashMap<>();
+        for (ArtMethod original : hookedPages.keySet()) {
+            HookMetrics m = HookMetrics.get(original);
+            if (m != null) {
+                metrics.put(m.getMethod(), m);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Run the given callback around the hook of the given hooked method, whether or not the hook
+     * calls the original method. Multiple callbacks can be added for the same method. The
+     * callbacks are removed when the method is unhooked.
+     *
+     * @throws IllegalStateException If the method is not hooked through a bridge generated by the
+     *                               ArtHook annotation processor, callbacks can't run then
+     */
+    public static void addCallback(Member original, HookCallback callback) {
+        if (!OriginalMethod.runsCallbacks(ArtMethod.of(Assertions.argumentNotNull(original, "original"))))
+            throw new IllegalStateException(original + " is not hooked through a HookRegistry");
+        HookChain.of(original).add(callback);
+    }
+
+    public static boolean removeCallback(Member original, HookCallback callback) {
+        return HookChain.of(Assertions.argumentNotNull(original, "original")).remove(callback);
+    }
+
+    public static OriginalMethod hook(Method originalMethod, Method replacementMethod, String backupIdentifier) {
+        return hook((Object) originalMethod, replacementMethod, backupIdentifier);
+    }
+
+    /**
+     * If the method is already hooked, the new hook calls the previous one as its original method.
+     *
+     * @return null if the method could not be hooked
+     */
+    public static OriginalMethod hook(Object originalMethod, Method replacementMethod, String backupIdentifier) {
+        if (!(originalMethod instanceof Method) && !(originalMethod instanceof Constructor))
+            throw new RuntimeException("original method must be of type Method or Constructor");
+        PlannedHook hook = plan(originalMethod, replacementMethod, null, backupIdentifier);
+        return install(Collections.singletonList(hook)).get(replacementMethod);
+    }
+
+    /**
+     * @return The backup of the given method as a Method, also for constructors
+     */
+    private static Method backup(Object originalMethod, ArtMethod originalArt) {
+        ArtMethod backArt = originalArt.clone();
+        backArt.makePrivate();
+        if (originalMethod instanceof Constructor) {
+            backArt.convertToMethod();
+        }
         Method backupMethod = (Method) backArt.getAssociatedMethod();
         backupMethod.setAccessible(true);
-        OriginalMethod.store(originalMethod, backupMethod, backupIdentifier);
-
-        return new OriginalMethod(backupMethod);
+        return backupMethod;
     }
 
     public static ArtMethod hook(Method originalMethod, Method replacementMethod) {
+        checkHook(originalMethod, replacementMethod);
+        return hook(resolve(originalMethod), ArtMethod.of(replacementMethod));
+    }
+
+    public static ArtMethod hook(Constructor<?> originalMethod, Method replacementMethod) {
+        checkHook(originalMethod, replacementMethod);
+        return hook(resolve(originalMethod), ArtMethod.of(replacementMethod));
+    }
+
+    /**
+     * Like {@link ArtMethod#of(Object)}, the first call is timed for the {@link StartupReport}.
+     */
+    private static ArtMethod resolve(Object originalMethod) {
+        // Initialize before, so that it is not counted as part of the resolution
+        instructionSetHelper();
+        long start = StartupReport.start(StartupReport.FIRST_RESOLUTION);
+        ArtMethod artMethod = ArtMethod.of(originalMethod);
+        StartupReport.record(StartupReport.FIRST_RESOLUTION, start);
+        return artMethod;
+    }
+
+    private static void checkHook(Method originalMethod, Method replacementMethod) {
         Assertions.argumentNotNull(originalMethod, "originalMethod");
         Assertions.argumentNotNull(replacementMethod, "replacementMethod");
         if (originalMethod == replacementMethod || originalMethod.equals(replacementMethod))
             throw new IllegalArgumentException("originalMethod and replacementMethod can't be the same");
         if (!replacementMethod.getReturnType().isAssignableFrom(originalMethod.getReturnType()))
             throw new IllegalArgumentException("return types of originalMethod and replacementMethod do not match");
-
-        return hook(ArtMethod.of(originalMethod), ArtMethod.of(replacementMethod));
     }
 
-    public static ArtMethod hook(Constructor<?> originalMethod, Method replacementMethod) {
+    private static void checkHook(Constructor<?> originalMethod, Method replacementMethod) {
         Assertions.argumentNotNull(originalMethod, "originalMethod");
         Assertions.argumentNotNull(replacementMethod, "replacementMethod");
         if (replacementMethod.getReturnType() != Void.TYPE)
             throw new IllegalArgumentException("return types of replacementMethod has to be 'void'");
-
-        return hook(ArtMethod.of(originalMethod), ArtMethod.of(replacementMethod));
     }
 
     private static ArtMethod hook(ArtMethod original, ArtMethod replacement) {
-        HookPage page = handleHookPage(original, replacement);
-        ArtMethod backArt = original.clone();
-        backArt.makePrivate();
-        if (getQuickCompiledCodeSize(original) < INSTRUCTION_SET_HELPER.sizeOfDirectJump()) {
-            original.setEntryPointFromQuickCompiledCode(page.getCallHook());
-        } else {
+        if (OriginalMethod.isHooked(original))
+            throw new IllegalStateException(original + " is already hooked, hook it with a @Hook method instead");
+        HookPage page;
+        ReentrantLock lock;
+        while (true) {
+            page = getHookPage(original);
+            lock = lockOf(page);
+            lock.lock();
+            // An unhook might have dropped the page meanwhile
+            if (pages.get(page.getOriginalAddress()) == page) {
+                break;
+            }
+            lock.unlock();
+        }
+        try {
+            if (!handleHookPage(page, original, replacement)) {
+                return null;
+            }
+            ArtMethod backArt = original.clone();
+            backArt.makePrivate();
+            long start = StartupReport.start(StartupReport.FIRST_PATCH);
             boolean result = page.activate();
+            StartupReport.record(StartupReport.FIRST_PATCH, start);
             if (!result) {
+                page.removeHook(original);
                 return null;
             }
+            hookedPages.put(original, page);
+            return backArt;
+        } finally {
+            lock.unlock();
         }
-        return backArt;
     }
 
     private static int getQuickCompiledCodeSize(ArtMethod method) {
-        long entryPoint = INSTRUCTION_SET_HELPER.toMem(method.getEntryPointFromQuickCompiledCode());
+        long entryPoint = instructionSetHelper().toMem(method.getEntryPointFromQuickCompiledCode());
         long sizeInfo1 = entryPoint - 4;
-        byte[] bytes = Memory.get(sizeInfo1, 4);
-        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        return Memory.getInt(sizeInfo1);
     }
 
     static Object findTargetMethod(Method method) throws NoSuchMethodException, ClassNotFoundException {
@@ -190,7 +877,7 @@ public final class ArtHook {
         return findTargetMethod(method, Class.forName(split[0]), split.length == 1 ? method.getName() : split[1]);
     }
 
-    private static Object findTargetMethod(Method method, Class<?> targetClass, String methodName)
+    static Object findTargetMethod(Method method, Class<?> targetClass, String methodName)
             throws NoSuchMethodException {
         Class<?>[] params = null;
         if (method.getParameterTypes().length > 0) {
@@ -213,4 +900,36 @@ public final class ArtHook {
         }
         throw new NoSuchMethodException();
     }
+
+    /**
+     * A hook that is resolved, but not necessarily installed yet.
+     */
+    private static final class PlannedHook {
+        final Object original;
+        final Method replacement;
+        /**
+         * The method the hook page jumps to, the replacement or its bridge
+         */
+        final Method entry;
+        final String backupIdentifier;
+        final ArtMethod originalArt;
+        final ArtMethod replacementArt;
+        HookDescriptor descriptor;
+        HookPage page;
+        /**
+         * The hook of the page replaced by this one, if the method was hooked before
+         */
+        HookPage.Hook replaced;
+        OriginalMethod originalMethod;
+
+        PlannedHook(Object original, Method replacement, Method entry, String backupIdentifier, ArtMethod originalArt,
+                    ArtMethod replacementArt) {
+            this.original = original;
+            this.replacement = replacement;
+            this.entry = entry;
+            this.backupIdentifier = backupIdentifier;
+            this.originalArt = originalArt;
+            this.replacementArt = replacementArt;
+        }
+    }
 }
@@ -16,13 +16,21 @@
 
 package de.larma.arthook;
 
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import de.larma.arthook.avers.ArtMethodLayout;
 import de.larma.arthook.avers.VersionHelper;
 
 import static android.os.Build.VERSION.SDK_INT;
@@ -31,6 +39,7 @@ import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
 import static android.os.Build.VERSION_CODES.M;
 import static android.os.Build.VERSION_CODES.N;
 import static de.larma.arthook.DebugHelper.addrHex;
+import static de.larma.arthook.DebugHelper.isLoggable;
 import static de.larma.arthook.DebugHelper.logd;
 
 /**
@@ -54,11 +63,21 @@ public class ArtMethod {
 
     private static final boolean VERSION_L = SDK_INT == LOLLIPOP || SDK_INT == LOLLIPOP_MR1;
     private static final boolean VERSION_M_PLUS = SDK_INT >= M;
+    private static final ArtMethodLayout LAYOUT = loadLayout();
 
     public final Object artMethod;
     public Object associatedMethod;
 
     private static Class abstractMethodClass;
+    private static volatile Field artMethodField;
+    private static final Map<String, Field> fields = new ConcurrentHashMap<>();
+    /**
+     * Handles returned by {@link #of(Object)}, so the same handle is returned for the same
+     * Method or Constructor as long as both are in use. Methods are compared by identity, as a
+     * backup method equals its original.
+     */
+    private static final ConcurrentMap<IdentityKey, WeakReference<ArtMethod>> interned = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Object> internedQueue = new ReferenceQueue<>();
     static {
         try {
             abstractMethodClass = Class.forName(ABSTRACT_METHOD_CLASS_NAME);
@@ -70,6 +89,24 @@ public class ArtMethod {
         }
     }
 
+    /**
+     * Loading the VersionHelper is the {@link StartupReport#VERSION_HELPER} phase.
+     */
+    private static ArtMethodLayout loadLayout() {
+        long start = StartupReport.start(StartupReport.VERSION_HELPER);
+        ArtMethodLayout layout = VersionHelper.current() != null ? VersionHelper.current().getLayout() : null;
+        StartupReport.record(StartupReport.VERSION_HELPER, start);
+        return layout;
+    }
+
+    /**
+     * @return The layout of native ArtMethods on this system, or null if all fields have to be
+     * accessed using reflection
+     */
+    static ArtMethodLayout getLayout() {
+        return LAYOUT;
+    }
+
     /**
      * Create a new ArtMethod.
      * <p/>
@@ -77,13 +114,16 @@ public class ArtMethod {
      */
     private ArtMethod() {
         try {
-            artMethod = VersionHelper.CURRENT.createArtMethod();
+            artMethod = VersionHelper.current().createArtMethod();
         } catch (Exception e) {
             throw new RuntimeException("Can't create new ArtMethod, is this a system running Art?", e);
         }
     }
 
-    private ArtMethod(Object associatedMethod, Object artMethod) {
+    /**
+     * @param artMethod The ArtMethod object, or its address on Android M and later
+     */
+    ArtMethod(Object associatedMethod, Object artMethod) {
         this.artMethod = Assertions.argumentNotNull(artMethod, "artMethod");
         this.associatedMethod = associatedMethod;
     }
@@ -120,42 +160,78 @@ public class ArtMethod {
     static ArtMethod of(Object method) {
         if (method == null)
             return null;
+        for (Object key; (key = internedQueue.poll()) != null; ) {
+            interned.remove(key);
+        }
+        WeakReference<ArtMethod> ref = interned.get(new IdentityKey(method, null));
+        ArtMethod artMethod = ref != null ? ref.get() : null;
+        if (artMethod != null) {
+            return artMethod;
+        }
+        return intern(method, new ArtMethod(method, getArtMethod(method)));
+    }
+
+    /**
+     * @return The given handle, or the one another thread interned for the same method first
+     */
+    static ArtMethod intern(Object method, ArtMethod artMethod) {
+        IdentityKey key = new IdentityKey(method, internedQueue);
+        WeakReference<ArtMethod> newRef = new WeakReference<>(artMethod);
+        while (true) {
+            WeakReference<ArtMethod> ref = interned.putIfAbsent(key, newRef);
+            if (ref == null) {
+                return artMethod;
+            }
+            ArtMethod other = ref.get();
+            if (other != null) {
+                return other;
+            }
+            // The other handle is not in use anymore
+            if (interned.replace(key, ref, newRef)) {
+                return artMethod;
+            }
+        }
+    }
+
+    private static Object getArtMethod(Object method) {
         if (abstractMethodClass == null)
             throw new RuntimeException("No abstract method class, is this a system running Art?");
         try {
-            Field artMethodField = abstractMethodClass.getDeclaredField(FIELD_ART_METHOD);
-            artMethodField.setAccessible(true);
-            return new ArtMethod(method, artMethodField.get(method));
+            if (artMethodField == null) {
+                Field field = abstractMethodClass.getDeclaredField(FIELD_ART_METHOD);
+                field.setAccessible(true);
+                artMethodField = field;
+            }
+            return artMethodField.get(method);
         } catch (Throwable e) {
             throw new RuntimeException("Method has no artMethod field, is this a system running Art?", e);
         }
     }
 
     private Object get(String name) {
-        Object val = VersionHelper.CURRENT.getArtMethodFieldNative(this, name);
-        if (val == null) {
-            val = get(getField(name));
+        Object val = get(getField(name));
+        if (isLoggable(Log.DEBUG)) {
+            logd("Reading field: " + name + "=" + val + " from " + associatedMethod);
         }
-        logd("Reading field: " + name + "=" + val + " from " + associatedMethod);
         return val;
     }
 
     private void set(String name, Object value) {
-        logd("Writing field: " + name + "=" + value + " from " + associatedMethod);
-        if (!VersionHelper.CURRENT.setArtMethodFieldNative(this, name, value)) {
-            set(getField(name), value);
+        if (isLoggable(Log.DEBUG)) {
+            logd("Writing field: " + name + "=" + value + " from " + associatedMethod);
         }
+        set(getField(name), value);
     }
 
     @SuppressWarnings({"CloneDoesntCallSuperClone", "CloneDoesntDeclareCloneNotSupportedException"})
     public ArtMethod clone() {
         ArtMethod clone = new ArtMethod();
-        VersionHelper.CURRENT.copy(this, clone);
+        VersionHelper.current().copy(this, clone);
         return clone;
     }
 
     public void convertToMethod() {
-        associatedMethod = VersionHelper.CURRENT.newMethod(associatedMethod, this);
+        associatedMethod = VersionHelper.current().newMethod(associatedMethod, this);
     }
 
     public Object getAssociatedMethod() {
@@ -167,35 +243,77 @@ public class ArtMethod {
     }
 
     public int getAccessFlags() {
+        if (LAYOUT != null && LAYOUT.hasAccessFlags()) {
+            return LAYOUT.accessFlags(getAddress());
+        }
         return (int) get(FIELD_ACCESS_FLAGS);
     }
 
     public void setAccessFlags(int flags) {
-        set(FIELD_ACCESS_FLAGS, flags);
+        if (LAYOUT != null && LAYOUT.hasAccessFlags()) {
+            if (isLoggable(Log.DEBUG)) {
+                logd("Writing field: " + FIELD_ACCESS_FLAGS + "=" + flags + " from " + associatedMethod);
+            }
+            LAYOUT.accessFlags(getAddress(), flags);
+            Trace.event(Trace.WRITE_ACCESS_FLAGS, getAddress(), flags);
+        } else {
+            set(FIELD_ACCESS_FLAGS, flags);
+        }
     }
 
     public long getEntryPointFromJni() {
+        if (LAYOUT != null && LAYOUT.hasEntryPointFromJni()) {
+            return LAYOUT.entryPointFromJni(getAddress());
+        }
         return (long) get(FIELD_ENTRY_POINT_FROM_JNI);
     }
 
     public void setEntryPointFromJni(long entryPointFromJni) {
-        set(FIELD_ENTRY_POINT_FROM_JNI, entryPointFromJni);
+        if (LAYOUT != null && LAYOUT.hasEntryPointFromJni()) {
+            if (isLoggable(Log.DEBUG)) {
+                logd("Writing field: " + FIELD_ENTRY_POINT_FROM_JNI + "=" + entryPointFromJni + " from " + associatedMethod);
+            }
+            LAYOUT.entryPointFromJni(getAddress(), entryPointFromJni);
+        } else {
+            set(FIELD_ENTRY_POINT_FROM_JNI, entryPointFromJni);
+        }
     }
 
     public long getEntryPointFromInterpreter() {
+        if (LAYOUT != null && LAYOUT.hasEntryPointFromInterpreter()) {
+            return LAYOUT.entryPointFromInterpreter(getAddress());
+        }
         return (long) get(FIELD_ENTRY_POINT_FROM_INTERPRETER);
     }
 
     public void setEntryPointFromInterpreter(long entryPointFromInterpreter) {
-        set(FIELD_ENTRY_POINT_FROM_INTERPRETER, entryPointFromInterpreter);
+        if (LAYOUT != null && LAYOUT.hasEntryPointFromInterpreter()) {
+            if (isLoggable(Log.DEBUG)) {
+                logd("Writing field: " + FIELD_ENTRY_POINT_FROM_INTERPRETER + "=" + entryPointFromInterpreter + " from " + associatedMethod);
+            }
+            LAYOUT.entryPointFromInterpreter(getAddress(), entryPointFromInterpreter);
+        } else {
+            set(FIELD_ENTRY_POINT_FROM_INTERPRETER, entryPointFromInterpreter);
+        }
     }
 
     public long getEntryPointFromQuickCompiledCode() {
+        if (LAYOUT != null && LAYOUT.hasEntryPointQuick()) {
+            return LAYOUT.entryPointQuick(getAddress());
+        }
         return (long) get(FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE);
     }
 
     public void setEntryPointFromQuickCompiledCode(long entryPointFromQuickCompiledCode) {
-        set(FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE, entryPointFromQuickCompiledCode);
+        if (LAYOUT != null && LAYOUT.hasEntryPointQuick()) {
+            if (isLoggable(Log.DEBUG)) {
+                logd("Writing field: " + FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE + "=" + entryPointFromQuickCompiledCode + " from " + associatedMethod);
+            }
+            LAYOUT.entryPointQuick(getAddress(), entryPointFromQuickCompiledCode);
+            Trace.event(Trace.WRITE_ENTRY_POINT, getAddress(), entryPointFromQuickCompiledCode);
+        } else {
+            set(FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE, entryPointFromQuickCompiledCode);
+        }
     }
 
     public void makePrivate() {
@@ -258,6 +376,15 @@ public class ArtMethod {
     }
 
     private Field getField(String name) {
+        Field field = fields.get(name);
+        if (field == null) {
+            field = findField(name);
+            fields.put(name, field);
+        }
+        return field;
+    }
+
+    private Field findField(String name) {
         if (VERSION_L) {
             try {
                 Field field = Class.forName(ART_METHOD_CLASS_NAME).getDeclaredField(name);
@@ -295,4 +422,26 @@ public class ArtMethod {
     public int hashCode() {
         return artMethod.hashCode();
     }
+
+    private static final class IdentityKey extends WeakReference<Object> {
+        private final int hash;
+
+        IdentityKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof IdentityKey)) return false;
+            Object referent = get();
+            return referent != null && referent == ((IdentityKey) other).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
@@ -24,8 +24,12 @@ public final class DebugHelper {
     private static final String TAG = "ArtHook";
     private static final long HEXDUMP_BYTES_PER_LINE = 16;
 
-    public static boolean DEBUG = true;
-    public static boolean WARN = true;
+    /**
+     * Debug messages are off unless enabled with {@link #setLogLevel(int)}. Callers building a
+     * message check {@link #isLoggable(int)} first, so nothing is formatted while they are off.
+     * See {@link Trace} for a cheaper way to find out what happened.
+     */
+    private static volatile int logLevel = Log.INFO;
 
     private DebugHelper() {
     }
@@ -68,20 +72,47 @@ public final class DebugHelper {
         return sb.toString().trim();
     }
 
+    /**
+     * @param level The lowest priority that is logged, one of {@link Log#DEBUG}, {@link Log#INFO},
+     *              {@link Log#WARN} or {@link Log#ASSERT} to log nothing
+     */
+    public static void setLogLevel(int level) {
+        logLevel = level;
+    }
+
+    public static int getLogLevel() {
+        return logLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= logLevel;
+    }
+
     public static void logd(String msg) {
-        if (DEBUG) Log.d(TAG, msg);
+        if (isLoggable(Log.DEBUG)) Log.d(TAG, msg);
     }
 
     public static void logd(String tagSuffix, String msg) {
-        if (DEBUG) Log.d(TAG + "." + tagSuffix, msg);
+        if (isLoggable(Log.DEBUG)) Log.d(TAG + "." + tagSuffix, msg);
+    }
+
+    /**
+     * Log a hex dump of the given bytes, it is only formatted if debug messages are logged.
+     */
+    public static void logd(String tagSuffix, byte[] bytes, long start) {
+        if (isLoggable(Log.DEBUG)) Log.d(TAG + "." + tagSuffix, hexdump(bytes, start));
+    }
+
+    public static void logi(String msg) {
+        if (isLoggable(Log.INFO)) Log.i(TAG, msg);
     }
 
     public static void logw(Exception e) {
-        if (WARN) Log.w(TAG, e);
+        if (isLoggable(Log.WARN)) Log.w(TAG, e);
     }
 
     public static void logw(String msg) {
-        if (WARN) Log.w(TAG, msg);
+        if (isLoggable(Log.WARN)) Log.w(TAG, msg);
     }
 
     public static String methodDescription(Method method) {
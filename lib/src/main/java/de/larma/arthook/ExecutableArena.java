@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static de.larma.arthook.DebugHelper.addrHex;
+import static de.larma.arthook.DebugHelper.isLoggable;
+import static de.larma.arthook.DebugHelper.logd;
+
+/**
+ * Sub-allocates small blocks of executable memory (like the code of a {@link HookPage}) from
+ * large mappings, so that not every block requires its own mapping.
+ * <p/>
+ * Blocks are rounded up to power of 2 size classes from {@link #MIN_BLOCK_SIZE} to
+ * {@link #MAX_BLOCK_SIZE}, freed blocks are kept in a free list per size class. Blocks larger
+ * than {@link #MAX_BLOCK_SIZE} get a mapping of their own.
+ * <p/>
+ * Blocks other threads might still be executing are retired instead of freed, and reused once
+ * a garbage collection completed after they were retired. Every garbage collection of ART stops
+ * all threads running Java code or runs a checkpoint on each of them, which they only reach at a
+ * suspend point of compiled code. The code in these blocks has no suspend points and leaves
+ * them right away, so no thread can be inside of a block retired before the collection started.
+ * A collection is noticed by a weakly referenced object created when the block was retired.
+ */
+public final class ExecutableArena {
+    private static final String TAG = "ExecutableArena";
+
+    public static final int MIN_BLOCK_SIZE = 32;
+    public static final int MAX_BLOCK_SIZE = 4096;
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BLOCK_SIZE) -
+            Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE) + 1;
+
+    @SuppressWarnings("unchecked")
+    private final Deque<Long>[] freeLists = new Deque[SIZE_CLASSES];
+    /**
+     * Retired blocks in the order they were retired, see {@link #retire(long, int)}
+     */
+    private final Deque<RetiredBlock> retired = new ArrayDeque<>();
+    private int retiredBlocks;
+    private long retiredBytes;
+    private long chunkAddress;
+    private int chunkOffset = CHUNK_SIZE;
+    private int mappings;
+    private long mappedBytes;
+
+    public ExecutableArena() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            freeLists[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return The number of bytes actually reserved for a block of the given length. A block can
+     * grow in place up to this size.
+     */
+    public static int capacityOf(int length) {
+        if (length <= MIN_BLOCK_SIZE) {
+            return MIN_BLOCK_SIZE;
+        }
+        if (length > MAX_BLOCK_SIZE) {
+            return length;
+        }
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+
+    private static int sizeClassOf(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE);
+    }
+
+    public synchronized long allocate(int length) {
+        if (length <= 0)
+            throw new IllegalArgumentException("length must be positive");
+        int capacity = capacityOf(length);
+        reclaim();
+        if (capacity > MAX_BLOCK_SIZE) {
+            return map(capacity);
+        }
+        Long free = freeLists[sizeClassOf(capacity)].poll();
+        if (free != null) {
+            return free;
+        }
+        if (chunkOffset + capacity > CHUNK_SIZE) {
+            long chunk = map(CHUNK_SIZE);
+            if (chunk == 0) {
+                return 0;
+            }
+            retireChunk();
+            chunkAddress = chunk;
+            chunkOffset = 0;
+        }
+        long address = chunkAddress + chunkOffset;
+        chunkOffset += capacity;
+        return address;
+    }
+
+    public synchronized void free(long address, int length) {
+        if (address == 0) {
+            return;
+        }
+        release(address, capacityOf(length));
+    }
+
+    private void release(long address, int capacity) {
+        if (capacity > MAX_BLOCK_SIZE) {
+            if (Memory.unmap(address, capacity)) {
+                mappings--;
+                mappedBytes -= capacity;
+            }
+        } else {
+            freeLists[sizeClassOf(capacity)].push(address);
+        }
+    }
+
+    /**
+     * Free the given block once no thread can execute it anymore, after the next garbage
+     * collection. Use this instead of {@link #free(long, int)} for code other threads might still
+     * be executing. The block must no longer be reachable from any code when it is retired.
+     */
+    public synchronized void retire(long address, int length) {
+        if (address != 0) {
+            int capacity = capacityOf(length);
+            retired.add(new RetiredBlock(address, capacity));
+            retiredBlocks++;
+            retiredBytes += capacity;
+        }
+    }
+
+    /**
+     * Free the retired blocks no thread can execute anymore. Also done whenever a block is
+     * allocated.
+     */
+    public synchronized void reclaim() {
+        RetiredBlock block;
+        while ((block = retired.peek()) != null && block.collected.get() == null) {
+            retired.poll();
+            retiredBlocks--;
+            retiredBytes -= block.capacity;
+            release(block.address, block.capacity);
+        }
+    }
+
+    /**
+     * @return The number of blocks retired by {@link #retire(long, int)} and not reclaimed yet
+     */
+    public synchronized int getRetiredCount() {
+        return retiredBlocks;
+    }
+
+    /**
+     * @return The number of bytes retired by {@link #retire(long, int)} and not reclaimed yet,
+     * which stay mapped
+     */
+    public synchronized long getRetiredBytes() {
+        return retiredBytes;
+    }
+
+    /**
+     * Hands the unused rest of the current chunk to the free lists before a new chunk is started.
+     */
+    private void retireChunk() {
+        for (int capacity = MAX_BLOCK_SIZE; capacity >= MIN_BLOCK_SIZE; capacity >>= 1) {
+            while (chunkOffset + capacity <= CHUNK_SIZE) {
+                freeLists[sizeClassOf(capacity)].push(chunkAddress + chunkOffset);
+                chunkOffset += capacity;
+            }
+        }
+    }
+
+    private long map(int length) {
+        long address = Memory.map(length);
+        if (address != 0) {
+            mappings++;
+            mappedBytes += length;
+            if (isLoggable(Log.DEBUG)) {
+                logd(TAG, "Now using " + mappings + " mappings with " + mappedBytes + " bytes, added " +
+                        addrHex(address));
+            }
+        }
+        return address;
+    }
+
+    public synchronized int getMappingCount() {
+        return mappings;
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    private static final class RetiredBlock {
+        final long address;
+        final int capacity;
+        /**
+         * Cleared by the first garbage collection that started after the block was retired
+         */
+        final WeakReference<Object> collected = new WeakReference<>(new Object());
+
+        RetiredBlock(long address, int capacity) {
+            this.address = address;
+            this.capacity = capacity;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+/**
+ * A callback run before and after the hook of a hooked method, whether or not the hook calls
+ * the original method, see {@link ArtHook#addCallback(java.lang.reflect.Member, HookCallback)}.
+ * <p/>
+ * Callbacks with a higher priority run first before and last after the hook.
+ */
+public abstract class HookCallback {
+    public static final int PRIORITY_LOWEST = -10000;
+    public static final int PRIORITY_DEFAULT = 50;
+    public static final int PRIORITY_HIGHEST = 10000;
+
+    private final int priority;
+
+    protected HookCallback() {
+        this(PRIORITY_DEFAULT);
+    }
+
+    protected HookCallback(int priority) {
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Called before the hook. Setting a result or throwable skips the hook and all callbacks with
+     * lower priority.
+     */
+    protected void beforeCall(HookParam param) throws Throwable {
+    }
+
+    /**
+     * Called after the hook, the result or throwable can still be changed.
+     */
+    protected void afterCall(HookParam param) throws Throwable {
+    }
+}
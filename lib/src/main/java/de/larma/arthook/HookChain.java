@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link HookCallback}s of a hooked method, ordered by priority.
+ * <p/>
+ * The callbacks run in the bridge of the hook (see {@link HookDispatch}), around the call of the
+ * hook. The chain of a method is dropped when the method is unhooked.
+ */
+public final class HookChain {
+    private static final ConcurrentMap<ArtMethod, HookChain> chains = new ConcurrentHashMap<>();
+    private static final HookCallback[] EMPTY = new HookCallback[0];
+    private static final Comparator<HookCallback> BY_PRIORITY = new Comparator<HookCallback>() {
+        @Override
+        public int compare(HookCallback lhs, HookCallback rhs) {
+            return Integer.compare(rhs.getPriority(), lhs.getPriority());
+        }
+    };
+
+    private volatile HookCallback[] callbacks = EMPTY;
+
+    private HookChain() {
+    }
+
+    /**
+     * @return The chain of the given original method, created if required
+     */
+    static HookChain of(Member original) {
+        ArtMethod key = ArtMethod.of(original);
+        HookChain chain = chains.get(key);
+        if (chain == null) {
+            HookChain newChain = new HookChain();
+            chain = chains.putIfAbsent(key, newChain);
+            if (chain == null) {
+                chain = newChain;
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Drop the chain of the given method, after it was unhooked.
+     */
+    static void remove(ArtMethod original) {
+        chains.remove(original);
+    }
+
+    public synchronized void add(HookCallback callback) {
+        HookCallback[] newCallbacks = Arrays.copyOf(callbacks, callbacks.length + 1);
+        newCallbacks[callbacks.length] = Assertions.argumentNotNull(callback, "callback");
+        // Stable, so callbacks of the same priority run in the order they were added
+        Arrays.sort(newCallbacks, BY_PRIORITY);
+        callbacks = newCallbacks;
+    }
+
+    public synchronized boolean remove(HookCallback callback) {
+        for (int i = 0; i < callbacks.length; i++) {
+            if (callbacks[i] == callback) {
+                HookCallback[] newCallbacks = new HookCallback[callbacks.length - 1];
+                System.arraycopy(callbacks, 0, newCallbacks, 0, i);
+                System.arraycopy(callbacks, i + 1, newCallbacks, i, newCallbacks.length - i);
+                callbacks = newCallbacks;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return callbacks.length == 0;
+    }
+
+    /**
+     * @return The callbacks ordered by priority, the array must not be modified
+     */
+    HookCallback[] getCallbacks() {
+        return callbacks;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * A {@link Hook} declaration as parsed and validated at build time.
+ */
+public final class HookDescriptor {
+    /**
+     * The target is a static method, it has the same parameters as the hook.
+     */
+    public static final int STATIC = 0;
+    /**
+     * The target is an instance method, the first parameter of the hook is the receiver.
+     */
+    public static final int INSTANCE = 1;
+    /**
+     * The target is a constructor, the first parameter of the hook is the new instance.
+     */
+    public static final int CONSTRUCTOR = 2;
+    /**
+     * The target class was not available at build time, the target is searched like for hooks
+     * without descriptor.
+     */
+    public static final int UNKNOWN = 3;
+
+    private final String hookName;
+    private final Class<?>[] hookParameterTypes;
+    private final String targetClassName;
+    private final String targetName;
+    private final int kind;
+    private final String backupIdentifier;
+    private final boolean bridged;
+    private volatile OriginalMethod original;
+
+    public HookDescriptor(String hookName, Class<?>[] hookParameterTypes, String targetClassName,
+                          String targetName, int kind, String backupIdentifier) {
+        this(hookName, hookParameterTypes, targetClassName, targetName, kind, backupIdentifier, false);
+    }
+
+    /**
+     * @param bridged Whether the registry declares a bridge for the hook, see {@link HookDispatch}
+     */
+    public HookDescriptor(String hookName, Class<?>[] hookParameterTypes, String targetClassName,
+                          String targetName, int kind, String backupIdentifier, boolean bridged) {
+        this.hookName = Assertions.argumentNotNull(hookName, "hookName");
+        this.hookParameterTypes = Assertions.argumentNotNull(hookParameterTypes, "hookParameterTypes");
+        this.targetClassName = Assertions.argumentNotNull(targetClassName, "targetClassName");
+        this.targetName = Assertions.argumentNotNull(targetName, "targetName");
+        this.kind = kind;
+        this.backupIdentifier = backupIdentifier;
+        this.bridged = bridged;
+    }
+
+    public String getHookName() {
+        return hookName;
+    }
+
+    public String getTargetClassName() {
+        return targetClassName;
+    }
+
+    public String getTargetName() {
+        return targetName;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public String getBackupIdentifier() {
+        return backupIdentifier;
+    }
+
+    public boolean isBridged() {
+        return bridged;
+    }
+
+    /**
+     * If the hook was renamed by an obfuscator, it is found by its {@link Hook} annotation.
+     */
+    public Method resolveHook(Class<?> hookClass) throws NoSuchMethodException {
+        try {
+            Method method = hookClass.getDeclaredMethod(hookName, hookParameterTypes);
+            if (method.isAnnotationPresent(Hook.class)) {
+                return method;
+            }
+        } catch (NoSuchMethodException ignored) {
+        }
+        Method found = null;
+        for (Method method : hookClass.getDeclaredMethods()) {
+            Hook hook = method.getAnnotation(Hook.class);
+            if (hook != null && hooks(hook.value()) && Arrays.equals(method.getParameterTypes(), hookParameterTypes)) {
+                if (found != null) {
+                    throw new NoSuchMethodException("More than one hook of " + targetClassName + "->" + targetName +
+                            " in " + hookClass);
+                }
+                found = method;
+            }
+        }
+        if (found == null) {
+            throw new NoSuchMethodException(hookName + " in " + hookClass);
+        }
+        return found;
+    }
+
+    /**
+     * @return Whether a {@link Hook} with the given value has the target of this descriptor. If
+     * the value does not name the target method, the hook has the same name as the target.
+     */
+    private boolean hooks(String value) {
+        String[] split = value.split("->");
+        if (!split[0].equals(targetClassName)) {
+            return false;
+        }
+        if (split.length == 1) {
+            return hookName.equals(targetName);
+        }
+        return split[1].equals(targetName) || kind == CONSTRUCTOR && split[1].equals("()");
+    }
+
+    /**
+     * @return The bridge declared by the given registry, it has the same name and parameters as
+     * the hook
+     */
+    public Method resolveBridge(Class<?> registryClass) throws NoSuchMethodException {
+        return registryClass.getDeclaredMethod(hookName, hookParameterTypes);
+    }
+
+    /**
+     * Called by the bridge before it calls the hook, {@link HookDispatch.Frame#exit()} has to be
+     * called once the hook returned or threw.
+     */
+    public HookDispatch.Frame enter() {
+        return HookDispatch.enter(original);
+    }
+
+    void setOriginal(OriginalMethod original) {
+        this.original = original;
+    }
+
+    /**
+     * Forget the given original method once its hook is removed, unless the hook was installed
+     * again in the meantime.
+     */
+    void clearOriginal(OriginalMethod original) {
+        if (this.original == original) {
+            this.original = null;
+        }
+    }
+
+    /**
+     * @return The Method or Constructor to be hooked
+     */
+    public Object resolveTarget(Method hook) throws ClassNotFoundException, NoSuchMethodException {
+        Class<?> targetClass = Class.forName(targetClassName);
+        switch (kind) {
+            case STATIC:
+                return targetClass.getDeclaredMethod(targetName, hookParameterTypes);
+            case INSTANCE:
+                return targetClass.getDeclaredMethod(targetName, getReceiverlessParameterTypes());
+            case CONSTRUCTOR:
+                return targetClass.getConstructor(getReceiverlessParameterTypes());
+            default:
+                return ArtHook.findTargetMethod(hook, targetClass, targetName);
+        }
+    }
+
+    private Class<?>[] getReceiverlessParameterTypes() {
+        Class<?>[] params = new Class<?>[hookParameterTypes.length - 1];
+        System.arraycopy(hookParameterTypes, 1, params, 0, params.length);
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        return "HookDescriptor{" + hookName + " -> " + targetClassName + "->" + targetName + "}";
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.lang.reflect.Member;
+import java.util.Arrays;
+
+import static de.larma.arthook.DebugHelper.logw;
+
+/**
+ * The hooks running on each thread, entered by the bridges the ArtHook annotation processor
+ * generates.
+ * <p/>
+ * If a {@link HookRegistry} exists for a class, its hook pages do not jump to the {@link Hook}
+ * methods themselves but to bridges of the same signature in the registry. A bridge wraps the
+ * call of its hook in {@link HookDescriptor#enter()} and {@link Frame#exit()}, so
+ * {@link OriginalMethod#current()} knows the hook without walking the stack. If the hooked method
+ * has {@link HookCallback}s, the bridge runs them around the call of the hook.
+ * <p/>
+ * Every thread keeps its frames, they are reused, so entering a hook does not allocate.
+ */
+public final class HookDispatch {
+    private static final ThreadLocal<Frames> FRAMES = new ThreadLocal<Frames>() {
+        @Override
+        protected Frames initialValue() {
+            return new Frames();
+        }
+    };
+
+    private HookDispatch() {
+    }
+
+    /**
+     * @param original The hook to enter, or null to hide all hooks entered before until the frame
+     *                 is exited, like while the original method runs
+     */
+    static Frame enter(OriginalMethod original) {
+        return FRAMES.get().push(original);
+    }
+
+    /**
+     * @return The original method of the innermost hook running on this thread, or null if
+     * there is none
+     */
+    static OriginalMethod current() {
+        return FRAMES.get().current();
+    }
+
+    /**
+     * @return The innermost frame of this thread, or null if there is none
+     */
+    static Frame top() {
+        return FRAMES.get().top();
+    }
+
+    private static final class Frames {
+        private Frame[] frames = new Frame[8];
+        private int depth;
+
+        private Frame push(OriginalMethod original) {
+            if (depth == frames.length) {
+                frames = Arrays.copyOf(frames, depth * 2);
+            }
+            Frame frame = frames[depth];
+            if (frame == null) {
+                frame = frames[depth] = new Frame(this, depth);
+            }
+            frame.original = original;
+            frame.originalTime = 0;
+            frame.start = original != null && HookMetrics.ENABLED ? System.nanoTime() : 0;
+            depth++;
+            return frame;
+        }
+
+        private void pop(Frame frame) {
+            if (frame.traced) {
+                MethodTracer.event(MethodTracer.EXIT, frame.original.getOriginal(), null);
+            }
+            if (frame.start != 0) {
+                HookMetrics metrics = frame.original.getMetrics();
+                if (metrics != null) {
+                    metrics.replacement.record(System.nanoTime() - frame.start - frame.originalTime);
+                }
+            }
+            // Also drops frames that were never exited, so the stack can't grow without bounds
+            if (frame.index < depth) {
+                depth = frame.index;
+            }
+            frame.clear();
+        }
+
+        private OriginalMethod current() {
+            return depth == 0 ? null : frames[depth - 1].original;
+        }
+
+        private Frame top() {
+            return depth == 0 ? null : frames[depth - 1];
+        }
+    }
+
+    /**
+     * A running hook. Only valid on the thread that entered it and until it is exited.
+     * <p/>
+     * If {@link #isTraced()}, the bridge first passes its first three arguments to
+     * {@link #traceEnter(Object, Object, Object)}. If {@link #hasCallbacks()}, the bridge passes the arguments using {@link #arguments(int)},
+     * calls the hook only if {@link #beforeCall()} returns true, passes its result or throwable
+     * and returns {@link #afterCall()}.
+     */
+    public static final class Frame {
+        private static final Object[] NO_ARGS = new Object[0];
+
+        private final Frames frames;
+        private final int index;
+        OriginalMethod original;
+        /**
+         * Time spent in the original method of this hook, see
+         * {@link OriginalMethod#callOriginal(Object, Object[])}
+         */
+        long originalTime;
+        private HookParam param;
+        private HookCallback[] callbacks;
+        private int called;
+        private long start;
+        private boolean traced;
+        private final Object[] traceArguments = new Object[2];
+        private Object[] arguments = NO_ARGS;
+        private Object[] targetArguments = NO_ARGS;
+
+        private Frame(Frames frames, int index) {
+            this.frames = frames;
+            this.index = index;
+        }
+
+        public void exit() {
+            frames.pop(this);
+        }
+
+        /**
+         * @return Whether the bridge has to call {@link #traceEnter(Object, Object, Object)}
+         */
+        public boolean isTraced() {
+            return MethodTracer.ENABLED && original != null;
+        }
+
+        /**
+         * Record that the hook was entered, its exit is recorded when the frame is exited.
+         *
+         * @param a0 The first argument of the hook or null, and so on. The receiver is skipped,
+         *           so only two words of arguments of the hooked method are recorded.
+         */
+        public void traceEnter(Object a0, Object a1, Object a2) {
+            Object[] args = traceArguments;
+            if (original.hasReceiver()) {
+                args[0] = a1;
+                args[1] = a2;
+            } else {
+                args[0] = a0;
+                args[1] = a1;
+            }
+            MethodTracer.event(MethodTracer.ENTER, original.getOriginal(), args);
+            args[0] = null;
+            args[1] = null;
+            traced = true;
+        }
+
+        /**
+         * @return Whether this is the outermost bridge of a hooked method with callbacks
+         */
+        public boolean hasCallbacks() {
+            OriginalMethod original = this.original;
+            return original != null && original.runsCallbacks() && !original.getChain().isEmpty();
+        }
+
+        /**
+         * @return An array for the given number of arguments of the hook, only valid until the
+         * frame is exited
+         */
+        public Object[] arguments(int count) {
+            if (arguments.length != count) {
+                arguments = new Object[count];
+            }
+            return arguments;
+        }
+
+        /**
+         * Run the callbacks before the hook. The receiver and arguments they see are taken from
+         * {@link #arguments(int)}, changed arguments are written back there.
+         *
+         * @return false if a callback set a result or throwable, the hook must not be called then
+         */
+        public boolean beforeCall() {
+            Member method = original.getOriginal();
+            Object thisObject = null;
+            Object[] args = arguments;
+            if (original.hasReceiver()) {
+                // Hooks of instance methods and constructors get the receiver as first argument
+                thisObject = args[0];
+                if (targetArguments.length != args.length - 1) {
+                    targetArguments = new Object[args.length - 1];
+                }
+                System.arraycopy(args, 1, targetArguments, 0, targetArguments.length);
+                args = targetArguments;
+            }
+            if (param == null) {
+                param = new HookParam();
+            }
+            param.reset(method, thisObject, args);
+            callbacks = original.getChain().getCallbacks();
+            called = 0;
+            while (called < callbacks.length && !param.returnEarly) {
+                try {
+                    callbacks[called++].beforeCall(param);
+                } catch (Throwable t) {
+                    logw(new RuntimeException("HookCallback failed before " + method, t));
+                    param.setResult(null);
+                    param.returnEarly = false;
+                }
+            }
+            if (param.returnEarly) {
+                return false;
+            }
+            if (args != arguments) {
+                System.arraycopy(args, 0, arguments, 1, args.length);
+            }
+            return true;
+        }
+
+        public void setResult(Object result) {
+            param.setResult(result);
+        }
+
+        public void setThrowable(Throwable throwable) {
+            param.setThrowable(throwable);
+        }
+
+        /**
+         * Run the callbacks after the hook.
+         *
+         * @return The result to be returned by the bridge, the throwable to be thrown by it is
+         * thrown
+         */
+        public Object afterCall() {
+            Member method = original.getOriginal();
+            for (int i = called - 1; i >= 0; i--) {
+                Object result = param.getResult();
+                Throwable throwable = param.getThrowable();
+                try {
+                    callbacks[i].afterCall(param);
+                } catch (Throwable t) {
+                    logw(new RuntimeException("HookCallback failed after " + method, t));
+                    if (throwable != null) {
+                        param.setThrowable(throwable);
+                    } else {
+                        param.setResult(result);
+                    }
+                }
+            }
+            if (param.hasThrowable()) {
+                throw OriginalMethod.<RuntimeException>throwUnchecked(param.getThrowable());
+            }
+            return param.getResult();
+        }
+
+        /**
+         * Forget everything of the call, so that nothing is retained by the reused frame.
+         */
+        private void clear() {
+            original = null;
+            start = 0;
+            traced = false;
+            if (callbacks != null) {
+                callbacks = null;
+                param.reset(null, null, null);
+                Arrays.fill(arguments, null);
+                Arrays.fill(targetArguments, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.lang.reflect.Member;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latencies of a hooked method, recorded while {@link #ENABLED} is set.
+ * <p/>
+ * The time spent in the replacement is the time spent in the bridge of the hook, including its
+ * {@link HookCallback}s, without the time spent in its calls of the {@link OriginalMethod}. A
+ * {@link Hook} method without bridge is called directly by the hook page and can't be timed, the
+ * time spent in its calls of the original method is recorded though.
+ */
+public final class HookMetrics {
+    public static volatile boolean ENABLED = false;
+
+    private static final ConcurrentMap<ArtMethod, HookMetrics> metrics = new ConcurrentHashMap<>();
+
+    private final Member method;
+    final LatencyHistogram replacement = new LatencyHistogram();
+    final LatencyHistogram original = new LatencyHistogram();
+
+    private HookMetrics(Member method) {
+        this.method = method;
+    }
+
+    /**
+     * @return The metrics of the given original method, created if required. Only called once
+     * metrics are enabled, so methods hooked while they are disabled get no entry.
+     */
+    static HookMetrics of(Member original) {
+        ArtMethod key = ArtMethod.of(original);
+        HookMetrics m = metrics.get(key);
+        if (m == null) {
+            HookMetrics newMetrics = new HookMetrics(original);
+            m = metrics.putIfAbsent(key, newMetrics);
+            if (m == null) {
+                m = newMetrics;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Drop the metrics of the given method, after it was unhooked.
+     */
+    static void remove(ArtMethod original) {
+        metrics.remove(original);
+    }
+
+    static HookMetrics get(ArtMethod original) {
+        return metrics.get(original);
+    }
+
+    public Member getMethod() {
+        return method;
+    }
+
+    /**
+     * @return Time spent in the hook itself, without the original method
+     */
+    public LatencyHistogram.Snapshot getReplacement() {
+        return replacement.snapshot();
+    }
+
+    /**
+     * @return Time spent in the original method, when called by the hook
+     */
+    public LatencyHistogram.Snapshot getOriginal() {
+        return original.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return method + ": replacement(" + getReplacement() + "), original(" + getOriginal() + ")";
+    }
+}
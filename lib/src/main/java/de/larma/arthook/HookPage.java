@@ -16,11 +16,18 @@
 
 package de.larma.arthook;
 
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import de.larma.arthook.instrs.InstructionHelper;
 
+import static de.larma.arthook.DebugHelper.isLoggable;
 import static de.larma.arthook.DebugHelper.logd;
 
 /**
@@ -34,24 +41,55 @@ import static de.larma.arthook.DebugHelper.logd;
  * <li>Backup of hooked method prologue (sizeOf(DirectJump) = >=8 bytes)</li>
  * <li>Jump to the original method address after the prologue (sizeOf(DirectJump) = >=8 bytes)</li>
  * </ul>
+ * Once {@link #TABLE_DISPATCH_THRESHOLD} methods share a HookPage and the instruction set
+ * supports it, the checks are replaced by a binary search:
+ * <ul>
+ * <li>A TableDispatch searching the ArtMethod in the table and jumping if found</li>
+ * <li>Backup of hooked method prologue and jump to the original method, as above</li>
+ * <li>For each method hooked: a table entry, sorted by the ArtMethod address</li>
+ * </ul>
  */
 public class HookPage {
+    /**
+     * Number of hooks in a single HookPage from which on a TableDispatch is used instead of one
+     * check per hook, so calls are no longer linear in the number of hooks.
+     */
+    public static final int TABLE_DISPATCH_THRESHOLD = 8;
+
     private final InstructionHelper instructionHelper;
     private final long originalAddress;
     private final byte[] originalPrologue;
     private final Set<Hook> hooks = new HashSet<>();
     private int allocatedSize;
     private long allocatedAddress;
+    /**
+     * Memory the page used before it moved, still referenced until the page is activated again
+     */
+    private int oldSize;
+    private long oldAddress;
     private int quickCompiledCodeSize;
     private boolean active;
+    /**
+     * Address and layout of the code as last written by {@link #update(PatchBatch)}
+     */
+    private long writtenAddress;
+    private boolean writtenTable;
+    /**
+     * Address and layout of the code the original method jumps to, as of the last
+     * {@link #activated()}. A page written but not activated (because activating failed) is never
+     * executed, so enabling a hook has to change this code instead.
+     */
+    private long activeAddress;
+    private boolean activeTable;
 
     public HookPage(InstructionHelper instructionHelper, long originalAddress, int quickCompiledCodeSize) {
         this.instructionHelper = Assertions.argumentNotNull(instructionHelper, "instructionHelper");
         this.originalAddress = originalAddress;
         this.quickCompiledCodeSize = quickCompiledCodeSize;
 
-        originalPrologue = Memory.get(originalAddress, quickCompiledCodeSize > 0 ? Math.min(quickCompiledCodeSize,
-                instructionHelper.sizeOfDirectJump()) : instructionHelper.sizeOfDirectJump());
+        originalPrologue = new byte[quickCompiledCodeSize > 0 ? Math.min(quickCompiledCodeSize,
+                instructionHelper.sizeOfDirectJump()) : instructionHelper.sizeOfDirectJump()];
+        Memory.view(originalAddress, originalPrologue.length).get(originalPrologue);
     }
 
     public int getHooksCount() {
@@ -66,8 +104,47 @@ public class HookPage {
         hooks.add(Assertions.argumentNotNull(hook, "hook"));
     }
 
+    /**
+     * @return The hook of the given method, or null if the method is not hooked in this page
+     */
+    public Hook getHook(ArtMethod src) {
+        for (Hook hook : hooks) {
+            if (hook.src.equals(src)) {
+                return hook;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The removed hook, or null if the method was not hooked in this page
+     */
+    public Hook removeHook(ArtMethod src) {
+        for (Hook hook : hooks) {
+            if (hook.src.equals(src)) {
+                hooks.remove(hook);
+                return hook;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Let the hook of the given method jump to another target. The new hook keeps the counter
+     * and whether it is enabled, the page has to be written and activated again afterwards.
+     *
+     * @return The replaced hook, or null if the method is not hooked in this page
+     */
+    public Hook retarget(ArtMethod src, ArtMethod target) {
+        Hook hook = removeHook(src);
+        if (hook != null) {
+            hooks.add(new Hook(hook, target));
+        }
+        return hook;
+    }
+
     private long getBaseAddress() {
-        if (getSize() != allocatedSize) {
+        if (allocatedAddress == 0 || getSize() > allocatedSize) {
             allocate();
         }
         return allocatedAddress;
@@ -78,78 +155,298 @@ public class HookPage {
     }
 
     private void allocate() {
-        if (allocatedAddress != 0)
-            deallocate();
-        allocatedSize = getSize();
-        allocatedAddress = Memory.map(allocatedSize);
+        relocate();
+        allocatedSize = Memory.capacityOfExecutable(getSize());
+        allocatedAddress = Memory.allocateExecutable(allocatedSize);
     }
 
-    private void deallocate() {
-        if (allocatedAddress != 0) {
-            Memory.unmap(allocatedAddress, allocatedSize);
-            allocatedAddress = 0;
-            allocatedSize = 0;
+    /**
+     * Move the page to new memory when it is written the next time. Other threads might still
+     * execute the current code, so it is kept until the page is activated at its new location.
+     */
+    public void relocate() {
+        if (allocatedAddress == 0) {
+            return;
+        }
+        if (active && oldAddress == 0) {
+            oldAddress = allocatedAddress;
+            oldSize = allocatedSize;
+        } else {
+            // Never activated, so nobody can execute it
+            Memory.freeExecutable(allocatedAddress, allocatedSize);
+        }
+        allocatedAddress = 0;
+        allocatedSize = 0;
+    }
 
-            if (active) {
-                Memory.put(originalPrologue, originalAddress);
-            }
+    /**
+     * Retire the memory used before the page moved, threads might still run its code.
+     */
+    private void retireOld() {
+        if (oldAddress != 0) {
+            Memory.retireExecutable(oldAddress, oldSize);
+            oldAddress = 0;
+            oldSize = 0;
         }
     }
 
+    private boolean useTableDispatch() {
+        return instructionHelper.supportsTableDispatch() && getHooksCount() >= TABLE_DISPATCH_THRESHOLD;
+    }
+
     public int getSize() {
+        if (useTableDispatch()) {
+            return instructionHelper.sizeOfTableDispatch() + instructionHelper.sizeOfCallOriginal() +
+                    instructionHelper.sizeOfTableEntry() * getHooksCount();
+        }
         return instructionHelper.sizeOfTargetJump() * getHooksCount() + instructionHelper.sizeOfCallOriginal();
     }
 
     public byte[] create() {
+        if (useTableDispatch()) {
+            return createTablePage();
+        }
         byte[] mainPage = new byte[getSize()];
         int offset = 0;
+        int slot = 0;
         for (Hook hook : getHooks()) {
+            hook.slot = slot++;
             byte[] targetJump = instructionHelper.createTargetJump(hook);
             System.arraycopy(targetJump, 0, mainPage, offset, instructionHelper.sizeOfTargetJump());
             offset += instructionHelper.sizeOfTargetJump();
         }
+        writeCallOriginal(mainPage, offset);
+        return mainPage;
+    }
+
+    private byte[] createTablePage() {
+        byte[] mainPage = new byte[getSize()];
+        byte[] tableDispatch = instructionHelper.createTableDispatch(getHooksCount());
+        System.arraycopy(tableDispatch, 0, mainPage, 0, instructionHelper.sizeOfTableDispatch());
+        int offset = instructionHelper.sizeOfTableDispatch();
+        writeCallOriginal(mainPage, offset);
+        offset += instructionHelper.sizeOfCallOriginal();
+        int slot = 0;
+        for (Hook hook : getSortedHooks()) {
+            hook.slot = slot++;
+            byte[] tableEntry = instructionHelper.createTableEntry(hook);
+            System.arraycopy(tableEntry, 0, mainPage, offset, instructionHelper.sizeOfTableEntry());
+            offset += instructionHelper.sizeOfTableEntry();
+        }
+        return mainPage;
+    }
+
+    private void writeCallOriginal(byte[] mainPage, int offset) {
         if (quickCompiledCodeSize > instructionHelper.sizeOfDirectJump()) {
             byte[] callOriginal = instructionHelper.createCallOriginal(originalAddress, originalPrologue);
             System.arraycopy(callOriginal, 0, mainPage, offset, callOriginal.length);
         } else {
             System.arraycopy(originalPrologue, 0, mainPage, offset, originalPrologue.length);
         }
-        return mainPage;
     }
 
-    public void update() {
+    /**
+     * @return The hooks of this page ordered by their unsigned ArtMethod address, as required by
+     * the TableDispatch
+     */
+    private List<Hook> getSortedHooks() {
+        List<Hook> sorted = new ArrayList<>(getHooks());
+        Collections.sort(sorted, new Comparator<Hook>() {
+            @Override
+            public int compare(Hook lhs, Hook rhs) {
+                return Long.compare(lhs.src.getAddress() + Long.MIN_VALUE, rhs.src.getAddress() + Long.MIN_VALUE);
+            }
+        });
+        return sorted;
+    }
+
+    public boolean update() {
+        PatchBatch batch = new PatchBatch();
+        update(batch);
+        return batch.apply();
+    }
+
+    /**
+     * Like {@link #update()}, but only adds the write to the given batch.
+     */
+    public void update(PatchBatch batch) {
         byte[] page = create();
-        logd("Writing HookPage for " + hooks.iterator().next().src);
-        Memory.put(page, getBaseAddress());
+        if (isLoggable(Log.DEBUG)) {
+            logd("Writing HookPage for " + hooks.iterator().next().src);
+        }
+        batch.add(getBaseAddress(), page);
+        writtenAddress = getBaseAddress();
+        writtenTable = useTableDispatch();
+        Trace.event(Trace.WRITE_HOOK_PAGE, getBaseAddress(), getHooksCount());
+    }
+
+    /**
+     * Enable or disable the hook of the given method without rewriting the page. A disabled hook
+     * calls the original method instead.
+     * <p/>
+     * This only takes a single store, the page has to be written (see {@link #update()}) before.
+     *
+     * @return false if the method is not hooked in this page
+     */
+    public boolean setEnabled(ArtMethod src, boolean enabled) {
+        Hook hook = getHook(src);
+        if (hook == null) {
+            return false;
+        }
+        hook.enabled = enabled;
+        long address = getEnabledAddress(hook);
+        if (address != 0) {
+            Memory.putInt(address, enabled ? 1 : 0);
+            Trace.event(Trace.SET_ENABLED, address, enabled ? 1 : 0);
+        }
+        return true;
+    }
+
+    /**
+     * @return The address of the enabled word of the hook in the active code, or 0 if the hook is
+     * not part of it
+     */
+    private long getEnabledAddress(Hook hook) {
+        if (activeAddress == 0 || hook.activeSlot < 0) {
+            return 0;
+        }
+        if (activeTable) {
+            return activeAddress + instructionHelper.sizeOfTableDispatch() + instructionHelper.sizeOfCallOriginal() +
+                    instructionHelper.sizeOfTableEntry() * hook.activeSlot + instructionHelper.offsetOfTableEntryEnabled();
+        }
+        return activeAddress + instructionHelper.sizeOfTargetJump() * hook.activeSlot +
+                instructionHelper.offsetOfTargetJumpEnabled();
+    }
+
+    public long getOriginalAddress() {
+        return originalAddress;
+    }
+
+    /**
+     * Methods too small to hold a DirectJump are not patched, instead the entry point of every
+     * hooked method is redirected to this page.
+     */
+    public boolean isRedirect() {
+        return quickCompiledCodeSize < instructionHelper.sizeOfDirectJump();
     }
 
     public boolean activate() {
-        logd("Writing hook to " + DebugHelper.addrHex(getCallHook()) + " in " + DebugHelper.addrHex(originalAddress));
-        boolean result = Memory.unprotect(originalAddress, instructionHelper.sizeOfDirectJump());
-        if (result) {
-            Memory.put(instructionHelper.createDirectJump(getCallHook()), originalAddress);
-            active = true;
+        PatchBatch batch = new PatchBatch();
+        activate(batch);
+        if (batch.size() == 0 || batch.apply()) {
+            activated();
             return true;
         } else {
             DebugHelper.logw("Writing hook failed: Unable to unprotect memory at " + DebugHelper.addrHex(originalAddress) + "!");
-            active = false;
             return false;
         }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        deallocate();
-        super.finalize();
+    /**
+     * Like {@link #activate()}, but the patch of the original method is only added to the given
+     * batch. Nothing jumps to the page before the batch was applied successfully and
+     * {@link #activated()} was called, the page has to be written before.
+     */
+    public void activate(PatchBatch batch) {
+        if (!isRedirect()) {
+            if (isLoggable(Log.DEBUG)) {
+                logd("Writing hook to " + DebugHelper.addrHex(getCallHook()) + " in " + DebugHelper.addrHex(originalAddress));
+            }
+            batch.add(originalAddress, instructionHelper.createDirectJump(getCallHook()));
+        }
+        Trace.event(Trace.ACTIVATE, originalAddress, getCallHook());
+    }
+
+    /**
+     * To be called once a batch containing {@link #activate(PatchBatch)} was applied.
+     */
+    public void activated() {
+        if (isRedirect()) {
+            // Also required for hooks added earlier, the page might have moved in the meantime
+            for (Hook hook : getHooks()) {
+                hook.src.setEntryPointFromQuickCompiledCode(getCallHook());
+            }
+        }
+        active = true;
+        activeAddress = writtenAddress;
+        activeTable = writtenTable;
+        for (Hook hook : getHooks()) {
+            hook.activeSlot = hook.slot;
+        }
+        retireOld();
+    }
+
+    /**
+     * Restore the original method and retire the memory of this page. Hooks redirecting their
+     * entry point to this page have to be restored before.
+     *
+     * @return false if the original method could not be restored, the page stays active then
+     */
+    public boolean deactivate() {
+        if (active && !isRedirect()) {
+            if (!Memory.patch(originalAddress, originalPrologue)) {
+                DebugHelper.logw("Restoring original failed: Unable to unprotect memory at " + DebugHelper.addrHex(originalAddress) + "!");
+                return false;
+            }
+        }
+        Trace.event(Trace.DEACTIVATE, originalAddress, allocatedAddress);
+        relocate();
+        retireOld();
+        active = false;
+        activeAddress = 0;
+        return true;
     }
 
     public static class Hook {
+        /**
+         * Counters are never freed, retired pages might still increment them for a while
+         */
+        private static final Slab COUNTERS = new Slab(8, 8);
+
         public final ArtMethod src;
         public final ArtMethod target;
+        private final long counterAddress;
+        private volatile boolean enabled = true;
+        /**
+         * Position of the hook in the page as last created, and in the active code of the page
+         */
+        private int slot = -1;
+        private int activeSlot = -1;
 
         public Hook(ArtMethod src, ArtMethod target) {
             this.src = Assertions.argumentNotNull(src, "src");
             this.target = Assertions.argumentNotNull(target, "target");
+            counterAddress = COUNTERS.allocate();
+            Memory.putLong(counterAddress, 0);
+        }
+
+        private Hook(Hook hook, ArtMethod target) {
+            this.src = hook.src;
+            this.target = Assertions.argumentNotNull(target, "target");
+            this.counterAddress = hook.counterAddress;
+            this.enabled = hook.enabled;
+            // Still the same entry of the active code, until the page is activated again
+            this.slot = hook.slot;
+            this.activeSlot = hook.activeSlot;
+        }
+
+        /**
+         * Address of the 64 bit counter incremented by the hook page on every call of the hook
+         */
+        public long getCounterAddress() {
+            return counterAddress;
+        }
+
+        /**
+         * @return How often the hook was called since it was created, without calls while it
+         * was disabled
+         */
+        public long getCallCount() {
+            return Memory.getLongAtomic(counterAddress);
+        }
+
+        public boolean isEnabled() {
+            return enabled;
         }
     }
 }
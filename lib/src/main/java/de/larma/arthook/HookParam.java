@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.lang.reflect.Member;
+
+/**
+ * The parameters, result and throwable of a single call of a hooked method, shared by all
+ * {@link HookCallback}s of the call.
+ * <p/>
+ * Params are reused for later calls of the same thread, so a param is only valid until the
+ * callback it was passed to returns.
+ */
+public final class HookParam {
+    private Member method;
+    private Object thisObject;
+    private Object[] args;
+    private Object result;
+    private Throwable throwable;
+    boolean returnEarly;
+
+    HookParam() {
+    }
+
+    void reset(Member method, Object thisObject, Object[] args) {
+        this.method = method;
+        this.thisObject = thisObject;
+        this.args = args;
+        this.result = null;
+        this.throwable = null;
+        this.returnEarly = false;
+    }
+
+    /**
+     * @return The hooked method
+     */
+    public Member getMethod() {
+        return method;
+    }
+
+    /**
+     * @return The receiver of the call, null for static methods
+     */
+    public Object getThisObject() {
+        return thisObject;
+    }
+
+    /**
+     * @return The arguments of the call, changes before the call are passed on to the hook
+     */
+    public Object[] getArgs() {
+        return args;
+    }
+
+    public Object getResult() {
+        return result;
+    }
+
+    /**
+     * Set the result. If called before the hook, neither the hook nor the original method is
+     * called.
+     */
+    public void setResult(Object result) {
+        this.result = result;
+        this.throwable = null;
+        this.returnEarly = true;
+    }
+
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    public boolean hasThrowable() {
+        return throwable != null;
+    }
+
+    /**
+     * Let the call throw. If called before the hook, neither the hook nor the original method is
+     * called.
+     */
+    public void setThrowable(Throwable throwable) {
+        this.throwable = throwable;
+        this.result = null;
+        this.returnEarly = true;
+    }
+}
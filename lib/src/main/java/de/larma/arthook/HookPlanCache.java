@@ -0,0 +1,400 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static de.larma.arthook.DebugHelper.isLoggable;
+import static de.larma.arthook.DebugHelper.logd;
+import static de.larma.arthook.DebugHelper.logw;
+
+/**
+ * Remembers how hooks were installed, so that the next start of the app does not have to
+ * search their targets again, see {@link ArtHook#setPlanCache(HookPlanCache)}.
+ * <p/>
+ * The plan is only valid for the system and APK it was made on, it is stored with a key of
+ * both (see {@link #keyOf(File)}) and discarded if the key changed. For every hook it contains
+ * the target and the page it shared with other hooks. Only the search of the target is saved.
+ * ART recompiles the code of apps in the background without the APK changing, so the size and
+ * prologue of the compiled code are always read again: a cheaper check of them can't tell
+ * recompiled code apart, as most methods start with the same instructions. The recorded page
+ * is compared with the HookPage of the hook and the entry is replaced if it differs.
+ * <p/>
+ * The file consists of
+ * <ul>
+ * <li>A header: magic, version, the key as short length and UTF-8 bytes, the number of
+ * entries and the CRC32 of the entries</li>
+ * <li>The entries: hook, target class and target name as short length and UTF-8 bytes, the
+ * {@link HookDescriptor} kind of the target and the page group</li>
+ * </ul>
+ */
+public final class HookPlanCache {
+    public static final int MAGIC = 0x43504841; // "AHPC"
+    public static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final String key;
+    private final Map<String, Entry> entries = new HashMap<>();
+    /**
+     * Page groups of this process by original address of the page
+     */
+    private final Map<Long, Integer> pageGroups = new HashMap<>();
+    /**
+     * Pages of this process the page groups of the loaded plan were found in, and the reverse
+     */
+    private final Map<Integer, Long> loadedGroupAddresses = new HashMap<>();
+    private final Map<Long, Integer> loadedGroupsByAddress = new HashMap<>();
+    private boolean dirty;
+
+    private HookPlanCache(File file, String key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /**
+     * Load the plan stored in the given file. If the file does not exist, is damaged or was
+     * stored with another key, the cache starts empty.
+     */
+    public static HookPlanCache open(File file, String key) {
+        HookPlanCache cache = new HookPlanCache(Assertions.argumentNotNull(file, "file"),
+                Assertions.argumentNotNull(key, "key"));
+        if (file.exists()) {
+            try {
+                cache.load();
+            } catch (IOException | RuntimeException e) {
+                logw(new RuntimeException("Discarding hook plan " + file, e));
+                cache.entries.clear();
+                cache.dirty = true;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return A key of this system and the given APK: the build fingerprint and the CRC32 of
+     * the checksums of all dex files in the APK. Only the central directory of the APK is read.
+     */
+    public static String keyOf(File apk) throws IOException {
+        CRC32 crc = new CRC32();
+        ZipFile zip = new ZipFile(apk);
+        try {
+            List<String> names = new ArrayList<>();
+            Map<String, Long> crcs = new HashMap<>();
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (entry.getName().endsWith(".dex")) {
+                    names.add(entry.getName());
+                    crcs.put(entry.getName(), entry.getCrc());
+                }
+            }
+            // Independent of the order of the entries in the APK
+            String[] sorted = names.toArray(new String[names.size()]);
+            Arrays.sort(sorted);
+            for (String name : sorted) {
+                crc.update(name.getBytes(UTF_8));
+                long value = crcs.get(name);
+                for (int i = 0; i < 4; i++) {
+                    crc.update((int) (value >>> (8 * i)));
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return Build.FINGERPRINT + "/" + Long.toHexString(crc.getValue());
+    }
+
+    private void load() throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a hook plan");
+            }
+            if (!key.equals(getString(buffer))) {
+                if (isLoggable(Log.DEBUG)) {
+                    logd("Hook plan " + file + " was made for another system or APK");
+                }
+                dirty = true;
+                return;
+            }
+            int count = buffer.getInt();
+            int crc = buffer.getInt();
+            CRC32 actual = new CRC32();
+            actual.update(toArray(buffer.slice()));
+            if ((int) actual.getValue() != crc) {
+                throw new IOException("Checksum mismatch");
+            }
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(getString(buffer), getString(buffer), getString(buffer), buffer.get(),
+                        buffer.getInt(), true);
+                entries.put(entry.hook, entry);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Hook plan is truncated", e);
+        }
+        if (isLoggable(Log.DEBUG)) {
+            logd("Loaded " + entries.size() + " planned hooks from " + file);
+        }
+    }
+
+    /**
+     * @return The entry of the given hook method, or null if it was not planned before
+     */
+    public synchronized Entry get(Method hook) {
+        return entries.get(keyOf(hook));
+    }
+
+    /**
+     * Remember how the given hook was installed.
+     */
+    synchronized void record(Method hook, Object target, HookPage page) {
+        Integer group = pageGroups.get(page.getOriginalAddress());
+        if (group == null) {
+            group = pageGroups.size();
+            pageGroups.put(page.getOriginalAddress(), group);
+        }
+        Member member = (Member) target;
+        int kind = target instanceof Constructor ? HookDescriptor.CONSTRUCTOR
+                : Modifier.isStatic(member.getModifiers()) ? HookDescriptor.STATIC : HookDescriptor.INSTANCE;
+        String name = kind == HookDescriptor.CONSTRUCTOR ? "<init>" : member.getName();
+        Entry entry = new Entry(keyOf(hook), member.getDeclaringClass().getName(), name, kind, group, false);
+        Entry old = entries.put(entry.hook, entry);
+        if (old == null || !old.matches(entry) ||
+                (old.loaded && !isSamePage(old.pageGroup, page.getOriginalAddress()))) {
+            if (old != null && isLoggable(Log.DEBUG)) logd("Hook plan of " + entry.hook + " changed");
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return false if hooks that shared a page when the plan was made do not share the page at
+     * the given address, or if the page now also contains hooks of other groups
+     */
+    private boolean isSamePage(int loadedGroup, long address) {
+        Long groupAddress = loadedGroupAddresses.get(loadedGroup);
+        Integer addressGroup = loadedGroupsByAddress.get(address);
+        if (groupAddress == null && addressGroup == null) {
+            loadedGroupAddresses.put(loadedGroup, address);
+            loadedGroupsByAddress.put(address, loadedGroup);
+            return true;
+        }
+        return groupAddress != null && groupAddress == address && addressGroup != null && addressGroup == loadedGroup;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if the plan changed since it was loaded or saved
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write the plan to the file, if it changed. The file is replaced at once, so a crash while
+     * saving leaves the previous plan.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(UTF_8);
+        List<byte[]> encoded = new ArrayList<>(entries.size());
+        int bodySize = 0;
+        for (Entry entry : entries.values()) {
+            byte[] bytes = entry.encode();
+            encoded.add(bytes);
+            bodySize += bytes.length;
+        }
+        ByteBuffer body = ByteBuffer.allocate(bodySize);
+        for (byte[] bytes : encoded) {
+            body.put(bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        int size = 4 + 4 + 2 + keyBytes.length + 4 + 4 + bodySize;
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putShort((short) keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.putInt(encoded.size());
+            buffer.putInt((int) crc.getValue());
+            buffer.put(body.array());
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Can't replace " + file);
+        }
+        dirty = false;
+    }
+
+    private static String keyOf(Method hook) {
+        StringBuilder sb = new StringBuilder(hook.getDeclaringClass().getName()).append('#')
+                .append(hook.getName()).append('(');
+        Class<?>[] params = hook.getParameterTypes();
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(params[i].getName());
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        return new String(getBytes(buffer, buffer.getShort() & 0xffff), UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * How a hook was installed.
+     */
+    public static final class Entry {
+        private final String hook;
+        private final String targetClassName;
+        private final String targetName;
+        private final int kind;
+        private final int pageGroup;
+        /**
+         * Whether the entry was loaded from the file, its page group is of another process then
+         */
+        private final boolean loaded;
+
+        private Entry(String hook, String targetClassName, String targetName, int kind, int pageGroup,
+                      boolean loaded) {
+            this.hook = hook;
+            this.targetClassName = targetClassName;
+            this.targetName = targetName;
+            this.kind = kind;
+            this.pageGroup = pageGroup;
+            this.loaded = loaded;
+        }
+
+        public String getTargetClassName() {
+            return targetClassName;
+        }
+
+        public String getTargetName() {
+            return targetName;
+        }
+
+        /**
+         * @return One of {@link HookDescriptor#STATIC}, {@link HookDescriptor#INSTANCE} and
+         * {@link HookDescriptor#CONSTRUCTOR}
+         */
+        public int getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The HookPage the hook shared with other hooks, hooks of the same page have the
+         * same group
+         */
+        public int getPageGroup() {
+            return pageGroup;
+        }
+
+        /**
+         * @return The Method or Constructor the given hook was installed on, found without
+         * searching
+         */
+        Object resolveTarget(Method hook) throws ClassNotFoundException, NoSuchMethodException {
+            return new HookDescriptor(hook.getName(), hook.getParameterTypes(), targetClassName, targetName,
+                    kind, null).resolveTarget(hook);
+        }
+
+        /**
+         * Page groups are numbered per process, the cache compares them when recording.
+         */
+        private boolean matches(Entry other) {
+            return targetClassName.equals(other.targetClassName) && targetName.equals(other.targetName) &&
+                    kind == other.kind;
+        }
+
+        private byte[] encode() {
+            byte[] hookBytes = hook.getBytes(UTF_8);
+            byte[] classBytes = targetClassName.getBytes(UTF_8);
+            byte[] nameBytes = targetName.getBytes(UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(2 + hookBytes.length + 2 + classBytes.length + 2 +
+                    nameBytes.length + 1 + 4).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putShort((short) hookBytes.length).put(hookBytes);
+            buffer.putShort((short) classBytes.length).put(classBytes);
+            buffer.putShort((short) nameBytes.length).put(nameBytes);
+            buffer.put((byte) kind);
+            buffer.putInt(pageGroup);
+            return buffer.array();
+        }
+
+        @Override
+        public String toString() {
+            return "HookPlanCache.Entry{" + hook + " -> " + targetClassName + "->" + targetName + "}";
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+/**
+ * Hooks of a class, generated at build time by the ArtHook annotation processor as
+ * {@code <HookClass>$$HookRegistry}.
+ * <p/>
+ * If such a registry exists, {@link ArtHook#hook(Class)} uses it instead of scanning the class
+ * for {@link Hook} annotations. Registries are listed in {@link #INDEX}.
+ */
+public interface HookRegistry {
+    String SUFFIX = "$$HookRegistry";
+    /**
+     * The resource listing the names of all generated registries, one per line
+     */
+    String INDEX = "META-INF/services/de.larma.arthook.HookRegistry";
+
+    /**
+     * @return The class declaring the hooks
+     */
+    Class<?> getHookClass();
+
+    HookDescriptor[] getHooks();
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A log-linear histogram of durations in nanoseconds, similar to HdrHistogram.
+ * <p/>
+ * Values are recorded into buckets of {@link #SUB_BUCKETS} linear steps per power of 2, so the
+ * reported values are at most 1/{@link #SUB_BUCKETS} above the recorded ones. Threads record
+ * into one of {@link #STRIPES} sets of buckets chosen by their id, so they rarely contend and no
+ * buckets are kept per thread. The stripes are merged when a {@link #snapshot()} is taken. A
+ * snapshot taken while other threads are recording might therefore miss their latest values.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Larger values are recorded as this value, about 68 seconds
+     */
+    public static final long MAX_VALUE = (1L << 36) - 1;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+    private static final int STRIPES = 8;
+
+    /**
+     * Created on first use, with one more bucket for the maximum recorded into the stripe
+     */
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index - shift * SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        AtomicLongArray buckets = stripe((int) Thread.currentThread().getId() & (STRIPES - 1));
+        buckets.incrementAndGet(indexOf(value));
+        long max = buckets.get(BUCKETS);
+        while (value > max && !buckets.compareAndSet(BUCKETS, max, value)) {
+            max = buckets.get(BUCKETS);
+        }
+    }
+
+    private AtomicLongArray stripe(int index) {
+        AtomicLongArray buckets = stripes.get(index);
+        if (buckets == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS + 1));
+            buckets = stripes.get(index);
+        }
+        return buckets;
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray buckets = stripes.get(s);
+            if (buckets == null) {
+                continue;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += buckets.get(i);
+            }
+            max = Math.max(max, buckets.get(BUCKETS));
+        }
+        return new Snapshot(counts, max);
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long max;
+
+        private Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return The smallest value that at least the given percentage of all recorded values
+         * are less than or equal to, or 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return 0;
+        }
+
+        public long getP50() {
+            return getValueAtPercentile(50);
+        }
+
+        public long getP99() {
+            return getValueAtPercentile(99);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", p50=" + getP50() + "ns, p99=" + getP99() + "ns, max=" + max + "ns";
+        }
+    }
+}
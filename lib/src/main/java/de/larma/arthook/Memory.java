@@ -16,53 +16,208 @@
 
 package de.larma.arthook;
 
-import static de.larma.arthook.DebugHelper.hexdump;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import static de.larma.arthook.DebugHelper.addrHex;
+import static de.larma.arthook.DebugHelper.isLoggable;
 import static de.larma.arthook.DebugHelper.logd;
-import static de.larma.arthook.Native.memcpy;
-import static de.larma.arthook.Native.memget;
-import static de.larma.arthook.Native.memput;
-import static de.larma.arthook.Native.mmap;
-import static de.larma.arthook.Native.munmap;
-import static de.larma.arthook.Native.munprotect;
 
 public final class Memory {
     private static final String TAG = "Memory";
+    private static final ExecutableArena EXECUTABLE_ARENA = new ExecutableArena();
+
+    private static volatile MemoryBackend backend = new NativeMemoryBackend();
 
     private Memory() {
     }
 
+    /**
+     * Replace the memory all ArtHook operations access. This has to happen before any memory
+     * is mapped, addresses of one backend are meaningless to another.
+     */
+    public static void setBackend(MemoryBackend backend) {
+        if (backend == null)
+            throw new NullPointerException("backend");
+        Memory.backend = backend;
+    }
+
+    public static MemoryBackend getBackend() {
+        return backend;
+    }
+
     public static long map(int length) {
-        long m = mmap(length);
-        logd(TAG, "Mapped memory of size " + length + " at " + addrHex(m));
+        long m = backend.map(length);
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Mapped memory of size " + length + " at " + addrHex(m));
+        }
+        Trace.event(Trace.MAP, m, length);
+        return m;
+    }
+
+    /**
+     * Like {@link #map(int)}, but the memory is readable and writable only.
+     */
+    public static long mapData(int length) {
+        long m = backend.mapData(length);
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Mapped data memory of size " + length + " at " + addrHex(m));
+        }
+        Trace.event(Trace.MAP, m, length);
         return m;
     }
 
     public static boolean unmap(long address, int length) {
-        logd(TAG, "Removing mapped memory of size " + length + " at " + addrHex(address));
-        return munmap(address, length);
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Removing mapped memory of size " + length + " at " + addrHex(address));
+        }
+        Trace.event(Trace.UNMAP, address, length);
+        return backend.unmap(address, length);
+    }
+
+    /**
+     * Allocate executable memory for small pieces of code. Unlike {@link #map(int)} this does not
+     * require a mapping of its own but is taken from an {@link ExecutableArena}.
+     *
+     * @return The address of the allocated memory, which can hold at least
+     * {@link #capacityOfExecutable(int)} bytes.
+     */
+    public static long allocateExecutable(int length) {
+        long m = EXECUTABLE_ARENA.allocate(length);
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Allocated executable memory of size " + length + " at " + addrHex(m));
+        }
+        Trace.event(Trace.ALLOCATE_EXECUTABLE, m, length);
+        return m;
+    }
+
+    public static void freeExecutable(long address, int length) {
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Freeing executable memory of size " + length + " at " + addrHex(address));
+        }
+        Trace.event(Trace.FREE_EXECUTABLE, address, length);
+        EXECUTABLE_ARENA.free(address, length);
+    }
+
+    /**
+     * Give up executable memory that other threads might still be executing. It is reused after
+     * the next garbage collection, see {@link ExecutableArena}.
+     */
+    public static void retireExecutable(long address, int length) {
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Retiring executable memory of size " + length + " at " + addrHex(address));
+        }
+        Trace.event(Trace.RETIRE_EXECUTABLE, address, length);
+        EXECUTABLE_ARENA.retire(address, length);
+    }
+
+    public static int capacityOfExecutable(int length) {
+        return ExecutableArena.capacityOf(length);
+    }
+
+    public static ExecutableArena getExecutableArena() {
+        return EXECUTABLE_ARENA;
     }
 
     public static void put(byte[] bytes, long dest) {
-        logd(TAG, "Writing memory to: " + addrHex(dest));
-        logd(TAG, hexdump(bytes, dest));
-        memput(bytes, dest);
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Writing memory to: " + addrHex(dest));
+        }
+        logd(TAG, bytes, dest);
+        Trace.event(Trace.PUT, dest, bytes.length);
+        backend.put(bytes, dest);
     }
 
     public static byte[] get(long src, int length) {
-        logd(TAG, "Reading " + length + " bytes from: " + addrHex(src));
-        byte[] bytes = memget(src, length);
-        logd(TAG, hexdump(bytes, src));
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Reading " + length + " bytes from: " + addrHex(src));
+        }
+        byte[] bytes = backend.get(src, length);
+        logd(TAG, bytes, src);
         return bytes;
     }
 
+    /**
+     * Access native memory in place, without copying it.
+     * <p/>
+     * Writes through the view do not flush the instruction cache, use
+     * {@link #patch(long, byte[])} to write code.
+     *
+     * @return A little-endian ByteBuffer backed by the memory at the given address
+     */
+    public static ByteBuffer view(long address, int length) {
+        return backend.view(address, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static long getLong(long address) {
+        return backend.getLong(address);
+    }
+
+    public static int getInt(long address) {
+        return backend.getInt(address);
+    }
+
+    /**
+     * Like {@link #getLong(long)}, but the value is never torn by concurrent writes (like atomic
+     * increments). The address has to be 8 byte aligned.
+     */
+    public static long getLongAtomic(long address) {
+        return backend.getLongAtomic(address);
+    }
+
+    public static void putLong(long address, long value) {
+        backend.putLong(address, value);
+    }
+
+    public static void putInt(long address, int value) {
+        backend.putInt(address, value);
+    }
+
     public static boolean unprotect(long addr, long len) {
-        logd(TAG, "Disabling mprotect from " + addrHex(addr));
-        return munprotect(addr, len);
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Disabling mprotect from " + addrHex(addr));
+        }
+        return backend.unprotect(addr, len);
+    }
+
+    /**
+     * Write code to executable memory, see {@link #patch(long[], byte[][])}.
+     */
+    public static boolean patch(long dest, byte[] bytes) {
+        return patch(new long[]{dest}, new byte[][]{bytes});
+    }
+
+    /**
+     * Write all payloads to their destination, making the memory writable before and flushing
+     * the instruction cache afterwards.
+     * <p/>
+     * Destinations sharing a page are unprotected together and the cache is flushed only once
+     * for every contiguous range.
+     *
+     * @return false if the memory could not be unprotected, nothing was written in this case
+     */
+    public static boolean patch(long[] dests, byte[][] payloads) {
+        if (dests.length != payloads.length)
+            throw new IllegalArgumentException("dests and payloads must have the same length");
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Patching " + dests.length + " locations");
+            for (int i = 0; i < dests.length; i++) {
+                logd(TAG, payloads[i], dests[i]);
+            }
+        }
+        for (int i = 0; i < dests.length; i++) {
+            Trace.event(Trace.PATCH, dests[i], payloads[i].length);
+        }
+        return backend.patch(dests, payloads);
     }
 
     public static void copy(long src, long dst, int length) {
-        logd(TAG, "Copy " + length + " bytes form " + addrHex(src) + " to " + addrHex(dst));
-        memcpy(src, dst, length);
+        if (isLoggable(Log.DEBUG)) {
+            logd(TAG, "Copy " + length + " bytes form " + addrHex(src) + " to " + addrHex(dst));
+        }
+        Trace.event(Trace.COPY, src, dst);
+        backend.copy(src, dst, length);
     }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The memory {@link Memory} reads and writes. The {@link NativeMemoryBackend} accesses the
+ * memory of this process, the benchmarks use a simulated address space of their own.
+ */
+public interface MemoryBackend {
+    /**
+     * @return The address of a new readable, writable and executable mapping, or 0 on failure
+     */
+    long map(int length);
+
+    /**
+     * @return The address of a new readable and writable mapping, or 0 on failure
+     */
+    long mapData(int length);
+
+    boolean unmap(long address, int length);
+
+    void put(byte[] bytes, long dest);
+
+    byte[] get(long src, int length);
+
+    /**
+     * @return A ByteBuffer backed by the memory at the given address
+     */
+    ByteBuffer view(long address, int length);
+
+    long getLong(long address);
+
+    int getInt(long address);
+
+    /**
+     * Read a 64 bit value at once, even on 32 bit systems. The address has to be 8 byte aligned.
+     */
+    long getLongAtomic(long address);
+
+    void putLong(long address, long value);
+
+    void putInt(long address, int value);
+
+    /**
+     * Make the pages containing the given range readable, writable and executable.
+     */
+    boolean unprotect(long address, long length);
+
+    /**
+     * Write all payloads to their destination, making the memory writable before and flushing
+     * the instruction cache afterwards. Nothing is written if the memory could not be made
+     * writable.
+     */
+    boolean patch(long[] dests, byte[][] payloads);
+
+    void copy(long src, long dst, int length);
+}
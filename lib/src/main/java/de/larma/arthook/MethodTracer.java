@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Member;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records entry and exit of hooked methods into a memory-mapped file, so the trace survives a
+ * crash of the process. The file can be read with the decoder module.
+ * <p/>
+ * The file consists of
+ * <ul>
+ * <li>A header of {@link #HEADER_SIZE} bytes: magic, version, region count, events per
+ * region, nanoTime and wall clock time when tracing started</li>
+ * <li>A dictionary of {@link #DICTIONARY_SIZE} bytes: for every method an int id, a short
+ * length and the UTF-8 name, terminated by id 0</li>
+ * <li>One region per thread: the thread id, the number of events ever written by the thread and
+ * a ring buffer of events of {@link #EVENT_SIZE} bytes: nanoTime, method id, type and two
+ * argument words</li>
+ * </ul>
+ * Every thread owns a region, so events are written without any synchronization. Once all
+ * regions are taken, the region of a thread that ended is handed to the next thread, threads
+ * that start while none of them ended are not traced. The number of events is updated after
+ * each event, so a crash leaves at most the oldest event of a full ring buffer partially
+ * overwritten.
+ * <p/>
+ * Hooks are traced by their bridges generated by the ArtHook annotation processor, see
+ * {@link HookDispatch}. Only hooks installed by {@link ArtHook#hook(Class)} with a generated
+ * {@link HookRegistry} have a bridge. Calls of hooks installed by
+ * {@link ArtHook#hook(java.lang.reflect.Method)}, {@link ArtHook#hookAll} or for a class without
+ * registry are not traced, only their calls of the original method are.
+ */
+public final class MethodTracer {
+    public static final long MAGIC = 0x4543415254545241L; // "ARTTRACE"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int DICTIONARY_SIZE = 64 * 1024;
+    public static final int REGION_HEADER_SIZE = 16;
+    public static final int EVENT_SIZE = 32;
+
+    /**
+     * A hook was called
+     */
+    public static final int ENTER = 1;
+    public static final int EXIT = 2;
+    /**
+     * A hook called its original method
+     */
+    public static final int ENTER_ORIGINAL = 3;
+    public static final int EXIT_ORIGINAL = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static volatile boolean ENABLED = false;
+
+    private static final Map<Member, Integer> ids = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Region> regions = new ThreadLocal<>();
+    private static volatile TraceFile trace;
+
+    private MethodTracer() {
+    }
+
+    /**
+     * Start tracing into the given file, replacing its content.
+     *
+     * @param threads         Maximum number of threads traced
+     * @param eventsPerThread Size of the ring buffer of every thread, older events are
+     *                        overwritten
+     */
+    public static synchronized void start(File file, int threads, int eventsPerThread) throws IOException {
+        if (threads <= 0 || eventsPerThread <= 0)
+            throw new IllegalArgumentException("threads and eventsPerThread must be positive");
+        stop();
+        long regionSize = REGION_HEADER_SIZE + (long) EVENT_SIZE * eventsPerThread;
+        long size = HEADER_SIZE + DICTIONARY_SIZE + regionSize * threads;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Trace file would be too large");
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, VERSION);
+        buffer.putInt(12, threads);
+        buffer.putInt(16, eventsPerThread);
+        buffer.putLong(24, System.nanoTime());
+        buffer.putLong(32, System.currentTimeMillis());
+        ids.clear();
+        trace = new TraceFile(buffer, threads, eventsPerThread, (int) regionSize);
+        ENABLED = true;
+    }
+
+    /**
+     * Stop tracing and write all events to the file.
+     */
+    public static synchronized void stop() {
+        ENABLED = false;
+        TraceFile trace = MethodTracer.trace;
+        MethodTracer.trace = null;
+        if (trace != null) {
+            trace.buffer.force();
+        }
+    }
+
+    static void event(int type, Member method, Object[] args) {
+        TraceFile trace = MethodTracer.trace;
+        if (trace == null) {
+            return;
+        }
+        Region region = regions.get();
+        if (region == null || region.trace != trace) {
+            region = trace.claimRegion();
+            regions.set(region);
+        }
+        if (region.buffer == null) {
+            return;
+        }
+        region.write(type, idOf(trace, method), word(args, 0), word(args, 1));
+    }
+
+    private static long word(Object[] args, int index) {
+        if (args == null || args.length <= index || args[index] == null) {
+            return 0;
+        }
+        Object arg = args[index];
+        if (arg instanceof Number) {
+            return ((Number) arg).longValue();
+        } else if (arg instanceof Boolean) {
+            return (Boolean) arg ? 1 : 0;
+        } else if (arg instanceof Character) {
+            return (Character) arg;
+        }
+        return System.identityHashCode(arg);
+    }
+
+    private static int idOf(TraceFile trace, Member method) {
+        Integer id = ids.get(method);
+        if (id != null) {
+            return id;
+        }
+        return trace.define(method);
+    }
+
+    private static final class TraceFile {
+        private final MappedByteBuffer buffer;
+        private final int threads;
+        private final int eventsPerThread;
+        private final int regionSize;
+        private final AtomicInteger nextRegion = new AtomicInteger();
+        /**
+         * The thread owning each claimed region, guarded by itself
+         */
+        private final WeakReference<?>[] owners;
+        private int nextId = 1;
+        private int dictionaryOffset = HEADER_SIZE;
+
+        private TraceFile(MappedByteBuffer buffer, int threads, int eventsPerThread, int regionSize) {
+            this.buffer = buffer;
+            this.threads = threads;
+            this.eventsPerThread = eventsPerThread;
+            this.regionSize = regionSize;
+            this.owners = new WeakReference<?>[threads];
+        }
+
+        private Region claimRegion() {
+            Thread thread = Thread.currentThread();
+            int index = nextRegion.getAndIncrement();
+            synchronized (owners) {
+                if (index >= threads) {
+                    index = reusableRegion();
+                    if (index < 0) {
+                        return new Region(this, null, 0);
+                    }
+                }
+                owners[index] = new WeakReference<>(thread);
+            }
+            int offset = HEADER_SIZE + DICTIONARY_SIZE + index * regionSize;
+            ByteBuffer own = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            // The events of the previous owner are dropped before the region changes hands
+            own.putLong(offset + 8, 0);
+            own.putLong(offset, thread.getId());
+            return new Region(this, own, offset);
+        }
+
+        /**
+         * @return The index of a region whose thread ended, or -1 if there is none
+         */
+        private int reusableRegion() {
+            for (int i = 0; i < owners.length; i++) {
+                Thread owner = owners[i] == null ? null : (Thread) owners[i].get();
+                if (owners[i] != null && (owner == null || !owner.isAlive())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private synchronized int define(Member method) {
+            Integer existing = ids.get(method);
+            if (existing != null) {
+                return existing;
+            }
+            byte[] name = (method.getDeclaringClass().getName() + "." + method.getName()).getBytes(UTF_8);
+            int id = nextId++;
+            // Keep room for the terminating id
+            if (dictionaryOffset + 6 + name.length + 4 <= HEADER_SIZE + DICTIONARY_SIZE) {
+                buffer.putShort(dictionaryOffset + 4, (short) name.length);
+                for (int i = 0; i < name.length; i++) {
+                    buffer.put(dictionaryOffset + 6 + i, name[i]);
+                }
+                // The id is written last, so the entry is complete once it is visible
+                buffer.putInt(dictionaryOffset, id);
+                dictionaryOffset += 6 + name.length;
+            }
+            ids.put(method, id);
+            return id;
+        }
+    }
+
+    private static final class Region {
+        private final TraceFile trace;
+        private final ByteBuffer buffer;
+        private final int offset;
+        private long written;
+
+        private Region(TraceFile trace, ByteBuffer buffer, int offset) {
+            this.trace = trace;
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        private void write(int type, int id, long arg0, long arg1) {
+            int event = offset + REGION_HEADER_SIZE + (int) (written % trace.eventsPerThread) * EVENT_SIZE;
+            buffer.putLong(event, System.nanoTime());
+            buffer.putInt(event + 8, id);
+            buffer.putInt(event + 12, type);
+            buffer.putLong(event + 16, arg0);
+            buffer.putLong(event + 24, arg1);
+            // Publish the event after it is complete, so a crash never leaves a torn event
+            buffer.putLong(offset + 8, ++written);
+        }
+    }
+}
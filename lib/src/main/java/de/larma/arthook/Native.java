@@ -16,6 +16,9 @@
 
 package de.larma.arthook;
 
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
 public final class Native {
 
     static {
@@ -27,6 +30,8 @@ public final class Native {
 
     public static native long mmap(int length);
 
+    public static native long mmapData(int length);
+
     public static native boolean munmap(long address, int length);
 
     public static native void memcpy(long src, long dest, int length);
@@ -35,8 +40,59 @@ public final class Native {
 
     public static native byte[] memget(long src, int length);
 
+    public static native ByteBuffer memview(long address, int length);
+
+    public static native long peekLong(long address);
+
+    public static native int peekInt(long address);
+
+    public static native void pokeLong(long address, long value);
+
+    public static native void pokeInt(long address, int value);
+
+    /**
+     * Read a 64 bit value at once, even on 32 bit systems. The address has to be 8 byte aligned.
+     */
+    public static native long atomicGetLong(long address);
+
+    /**
+     * @return true if the CPU supports the ARMv8.1 atomic instructions (like ldadd)
+     */
+    public static native boolean hasAtomics();
+
+    /**
+     * Flags of {@link #callPrimitive} and {@link #callObject}: call a static method, call a
+     * static method with the receiver as first argument and pass the arguments as long (instead of int)
+     */
+    static final int CALL_STATIC = 1;
+    static final int CALL_RECEIVER_AS_ARGUMENT = 2;
+    static final int CALL_WIDE = 4;
+
+    /**
+     * @return The JNI method id of the given method, valid as long as its class is loaded
+     */
+    public static native long methodId(Method method);
+
+    /**
+     * Call a method with up to two int or long arguments without boxing them. Virtual methods
+     * are called non-virtually.
+     *
+     * @param returnType The JNI type of the result, one of V, Z, I or J
+     * @return The result, widened to long
+     */
+    public static native long callPrimitive(Class<?> clazz, long methodId, Object receiver, int flags,
+                                            char returnType, int count, long a0, long a1);
+
+    /**
+     * Same as {@link #callPrimitive} for methods returning an object.
+     */
+    public static native Object callObject(Class<?> clazz, long methodId, Object receiver, int flags,
+                                           int count, long a0, long a1);
+
     public static native boolean munprotect(long addr, long len);
 
+    public static native boolean patchBatch(long[] addrs, byte[][] payloads);
+
     public static native void ptrace(int pid);
 
     private static Boolean sixtyFour;
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accesses the memory of this process through the JNI library.
+ */
+public final class NativeMemoryBackend implements MemoryBackend {
+    @Override
+    public long map(int length) {
+        return Native.mmap(length);
+    }
+
+    @Override
+    public long mapData(int length) {
+        return Native.mmapData(length);
+    }
+
+    @Override
+    public boolean unmap(long address, int length) {
+        return Native.munmap(address, length);
+    }
+
+    @Override
+    public void put(byte[] bytes, long dest) {
+        Native.memput(bytes, dest);
+    }
+
+    @Override
+    public byte[] get(long src, int length) {
+        return Native.memget(src, length);
+    }
+
+    @Override
+    public ByteBuffer view(long address, int length) {
+        return Native.memview(address, length);
+    }
+
+    @Override
+    public long getLong(long address) {
+        return Native.peekLong(address);
+    }
+
+    @Override
+    public int getInt(long address) {
+        return Native.peekInt(address);
+    }
+
+    @Override
+    public long getLongAtomic(long address) {
+        return Native.atomicGetLong(address);
+    }
+
+    @Override
+    public void putLong(long address, long value) {
+        Native.pokeLong(address, value);
+    }
+
+    @Override
+    public void putInt(long address, int value) {
+        Native.pokeInt(address, value);
+    }
+
+    @Override
+    public boolean unprotect(long address, long length) {
+        return Native.munprotect(address, length);
+    }
+
+    @Override
+    public boolean patch(long[] dests, byte[][] payloads) {
+        return Native.patchBatch(dests, payloads);
+    }
+
+    @Override
+    public void copy(long src, long dst, int length) {
+        Native.memcpy(src, dst, length);
+    }
+}
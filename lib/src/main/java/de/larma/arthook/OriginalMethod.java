@@ -20,28 +20,183 @@ import android.util.Log;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static de.larma.arthook.ArtHook.findTargetMethod;
+import static de.larma.arthook.DebugHelper.isLoggable;
 import static de.larma.arthook.DebugHelper.logd;
 
 public class OriginalMethod {
     private static final String TAG = "ArtHook.OriginalMethod";
-    private static final Map<ArtMethod, Method> backupMethods = new HashMap<>();
-    private static final Map<String, Method> identifiedBackups = new HashMap<>();
+    /**
+     * The topmost layer of every hooked method, see {@link #below}
+     */
+    private static final Map<ArtMethod, OriginalMethod> backups = new ConcurrentHashMap<>();
+    private static final Map<Method, OriginalMethod> hookLayers = new ConcurrentHashMap<>();
+    private static final Map<String, OriginalMethod> identifiedBackups = new ConcurrentHashMap<>();
+    private static final Map<Class, OriginalMethod> anchors = new ConcurrentHashMap<>();
+    /**
+     * The installed hooks by class and method name, for {@link #byStack()}. Only holds hooks
+     * that are installed, they are removed with them.
+     */
+    private static final Map<String, Map<String, OriginalMethod>> hooks = new ConcurrentHashMap<>();
+    /**
+     * Number of installed hooks that are called without a bridge, so without entering a frame
+     */
+    private static final AtomicInteger unbridgedHooks = new AtomicInteger();
+    private static final int MAX_TYPED_ARGS = 6;
+    private static final ThreadLocal<Object[][]> ARGS = new ThreadLocal<Object[][]>() {
+        @Override
+        protected Object[][] initialValue() {
+            Object[][] args = new Object[MAX_TYPED_ARGS + 1][];
+            for (int i = 0; i <= MAX_TYPED_ARGS; i++) {
+                args[i] = new Object[i];
+            }
+            return args;
+        }
+    };
     private final Method method;
+    private final Method hook;
+    /**
+     * The method the hook page jumps to, the hook or its bridge
+     */
+    private final Method entry;
+    /**
+     * The descriptor of the hook if it is called through a bridge, see {@link HookDispatch}
+     */
+    private final HookDescriptor bridged;
+    private final HookChain chain;
+    /**
+     * Looked up once metrics are enabled, see {@link #getMetrics()}
+     */
+    private volatile HookMetrics metrics;
+    /**
+     * The hooked method
+     */
+    private final Member original;
+    private final boolean hasReceiver;
+    /**
+     * JNI types of the parameters and of the result of the hooked method, see {@link #callPrimitive}
+     */
+    private final String parameterTypes;
+    private final char returnType;
+    /**
+     * JNI method ids of the backup and of the entry, looked up on their first call through JNI
+     */
+    private volatile long backupId;
+    private volatile long entryId;
+    /**
+     * If more than one hook is installed on the same method, each hook is a layer calling the
+     * hook installed before it as its original method. Only the lowest layer calls the backup.
+     * Changed while holding the lock of the hook page only.
+     */
+    private volatile OriginalMethod below;
+    private OriginalMethod above;
+    private volatile boolean runsCallbacks;
 
-    OriginalMethod(Method method) {
+    private OriginalMethod(Member original, Method method, Method hook, Method entry, HookDescriptor bridged) {
         this.method = method;
+        this.hook = hook;
+        this.entry = entry;
+        this.bridged = bridged;
+        this.chain = HookChain.of(original);
+        this.original = original;
+        this.hasReceiver = !Modifier.isStatic(original.getModifiers());
+        Class<?>[] parameters = original instanceof Method ? ((Method) original).getParameterTypes()
+                : ((Constructor<?>) original).getParameterTypes();
+        StringBuilder types = new StringBuilder(parameters.length);
+        for (Class<?> parameter : parameters) {
+            types.append(jniType(parameter));
+        }
+        this.parameterTypes = types.toString();
+        this.returnType = original instanceof Method ? jniType(((Method) original).getReturnType()) : 'V';
         method.setAccessible(true);
+        if (entry != null) {
+            entry.setAccessible(true);
+        }
+    }
+
+    private static char jniType(Class<?> type) {
+        if (!type.isPrimitive()) return 'L';
+        if (type == int.class) return 'I';
+        if (type == long.class) return 'J';
+        if (type == boolean.class) return 'Z';
+        if (type == void.class) return 'V';
+        if (type == byte.class) return 'B';
+        if (type == char.class) return 'C';
+        if (type == short.class) return 'S';
+        if (type == float.class) return 'F';
+        return 'D';
+    }
+
+    Member getOriginal() {
+        return original;
+    }
+
+    /**
+     * @return Whether the hook gets a receiver as first argument
+     */
+    boolean hasReceiver() {
+        return hasReceiver;
+    }
+
+    HookChain getChain() {
+        return chain;
+    }
+
+    /**
+     * @return The metrics of the hooked method, null while {@link HookMetrics#ENABLED} was never
+     * set for it
+     */
+    HookMetrics getMetrics() {
+        HookMetrics metrics = this.metrics;
+        if (metrics == null && HookMetrics.ENABLED && isHooked(ArtMethod.of(original))) {
+            metrics = HookMetrics.of(original);
+            this.metrics = metrics;
+        }
+        return metrics;
+    }
+
+    /**
+     * @return The backup of the hooked method, shared by all layers
+     */
+    Method getBackup() {
+        return method;
+    }
+
+    /**
+     * @return The hook installed before this one, which this hook calls as its original method,
+     * or null if this hook calls the backup
+     */
+    OriginalMethod getBelow() {
+        return below;
+    }
+
+    /**
+     * @return The method the hook page jumps to for this hook
+     */
+    Method getEntry() {
+        return entry;
+    }
+
+    /**
+     * @return Whether the bridge of this hook runs the {@link HookCallback}s of the hooked method,
+     * which is the case for the topmost layer with a bridge
+     */
+    boolean runsCallbacks() {
+        return runsCallbacks;
     }
 
     @SuppressWarnings("unchecked")
     public <T> T invoke(Object receiver, Object... args) {
         try {
-            return (T) method.invoke(receiver, args);
+            return (T) callOriginal(receiver, args);
         } catch (IllegalAccessException e) {
             throw new RuntimeException("Calling original method failed", e);
         } catch (InvocationTargetException e) {
@@ -49,24 +204,559 @@ public class OriginalMethod {
         }
     }
 
+    /*
+     * The typed invoke methods taking Object arguments only avoid allocating the varargs array of
+     * invoke(): their arguments are passed in an array that is reused for every call of the same
+     * thread and cleared once the call returns. Primitive arguments are still boxed at the call
+     * site, the call still goes through Method.invoke and primitive results are unboxed from the
+     * boxed value it returns. Method.invoke has read all arguments before the original method
+     * runs, so nested calls are fine. For static methods, the receiver is null.
+     *
+     * The typed invoke methods taking int or long arguments call the original method through JNI
+     * without boxing the arguments or the result, if the hooked method takes exactly these
+     * arguments and returns the invoked type. Otherwise they fall back to boxing them like the
+     * Object ones. MethodHandle.invokeExact can't be used, dex files for API levels below 26
+     * can't contain its call sites.
+     */
+
+    public void invokeVoid(Object receiver) {
+        call(receiver, args());
+    }
+
+    public void invokeVoid(Object receiver, Object a0) {
+        call(receiver, args(a0));
+    }
+
+    public void invokeVoid(Object receiver, Object a0, Object a1) {
+        call(receiver, args(a0, a1));
+    }
+
+    public void invokeVoid(Object receiver, Object a0, Object a1, Object a2) {
+        call(receiver, args(a0, a1, a2));
+    }
+
+    public void invokeVoid(Object receiver, Object a0, Object a1, Object a2, Object a3) {
+        call(receiver, args(a0, a1, a2, a3));
+    }
+
+    public void invokeVoid(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4) {
+        call(receiver, args(a0, a1, a2, a3, a4));
+    }
+
+    public void invokeVoid(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4, Object a5) {
+        call(receiver, args(a0, a1, a2, a3, a4, a5));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver) {
+        return (T) call(receiver, args());
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, Object a0) {
+        return (T) call(receiver, args(a0));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, Object a0, Object a1) {
+        return (T) call(receiver, args(a0, a1));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, Object a0, Object a1, Object a2) {
+        return (T) call(receiver, args(a0, a1, a2));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, Object a0, Object a1, Object a2, Object a3) {
+        return (T) call(receiver, args(a0, a1, a2, a3));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4) {
+        return (T) call(receiver, args(a0, a1, a2, a3, a4));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4, Object a5) {
+        return (T) call(receiver, args(a0, a1, a2, a3, a4, a5));
+    }
+
+    public boolean invokeBoolean(Object receiver) {
+        return (Boolean) call(receiver, args());
+    }
+
+    public boolean invokeBoolean(Object receiver, Object a0) {
+        return (Boolean) call(receiver, args(a0));
+    }
+
+    public boolean invokeBoolean(Object receiver, Object a0, Object a1) {
+        return (Boolean) call(receiver, args(a0, a1));
+    }
+
+    public boolean invokeBoolean(Object receiver, Object a0, Object a1, Object a2) {
+        return (Boolean) call(receiver, args(a0, a1, a2));
+    }
+
+    public boolean invokeBoolean(Object receiver, Object a0, Object a1, Object a2, Object a3) {
+        return (Boolean) call(receiver, args(a0, a1, a2, a3));
+    }
+
+    public boolean invokeBoolean(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4) {
+        return (Boolean) call(receiver, args(a0, a1, a2, a3, a4));
+    }
+
+    public boolean invokeBoolean(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4, Object a5) {
+        return (Boolean) call(receiver, args(a0, a1, a2, a3, a4, a5));
+    }
+
+    public int invokeInt(Object receiver) {
+        return (Integer) call(receiver, args());
+    }
+
+    public int invokeInt(Object receiver, Object a0) {
+        return (Integer) call(receiver, args(a0));
+    }
+
+    public int invokeInt(Object receiver, Object a0, Object a1) {
+        return (Integer) call(receiver, args(a0, a1));
+    }
+
+    public int invokeInt(Object receiver, Object a0, Object a1, Object a2) {
+        return (Integer) call(receiver, args(a0, a1, a2));
+    }
+
+    public int invokeInt(Object receiver, Object a0, Object a1, Object a2, Object a3) {
+        return (Integer) call(receiver, args(a0, a1, a2, a3));
+    }
+
+    public int invokeInt(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4) {
+        return (Integer) call(receiver, args(a0, a1, a2, a3, a4));
+    }
+
+    public int invokeInt(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4, Object a5) {
+        return (Integer) call(receiver, args(a0, a1, a2, a3, a4, a5));
+    }
+
+    public long invokeLong(Object receiver) {
+        return (Long) call(receiver, args());
+    }
+
+    public long invokeLong(Object receiver, Object a0) {
+        return (Long) call(receiver, args(a0));
+    }
+
+    public long invokeLong(Object receiver, Object a0, Object a1) {
+        return (Long) call(receiver, args(a0, a1));
+    }
+
+    public long invokeLong(Object receiver, Object a0, Object a1, Object a2) {
+        return (Long) call(receiver, args(a0, a1, a2));
+    }
+
+    public long invokeLong(Object receiver, Object a0, Object a1, Object a2, Object a3) {
+        return (Long) call(receiver, args(a0, a1, a2, a3));
+    }
+
+    public long invokeLong(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4) {
+        return (Long) call(receiver, args(a0, a1, a2, a3, a4));
+    }
+
+    public long invokeLong(Object receiver, Object a0, Object a1, Object a2, Object a3, Object a4, Object a5) {
+        return (Long) call(receiver, args(a0, a1, a2, a3, a4, a5));
+    }
+
+    public void invokeVoid(Object receiver, int a0) {
+        callPrimitive(receiver, 'V', 'I', 1, a0, 0);
+    }
+
+    public void invokeVoid(Object receiver, int a0, int a1) {
+        callPrimitive(receiver, 'V', 'I', 2, a0, a1);
+    }
+
+    public void invokeVoid(Object receiver, long a0) {
+        callPrimitive(receiver, 'V', 'J', 1, a0, 0);
+    }
+
+    public void invokeVoid(Object receiver, long a0, long a1) {
+        callPrimitive(receiver, 'V', 'J', 2, a0, a1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, int a0) {
+        return (T) callObject(receiver, 'I', 1, a0, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, int a0, int a1) {
+        return (T) callObject(receiver, 'I', 2, a0, a1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, long a0) {
+        return (T) callObject(receiver, 'J', 1, a0, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T invokeObject(Object receiver, long a0, long a1) {
+        return (T) callObject(receiver, 'J', 2, a0, a1);
+    }
+
+    public boolean invokeBoolean(Object receiver, int a0) {
+        return callPrimitive(receiver, 'Z', 'I', 1, a0, 0) != 0;
+    }
+
+    public boolean invokeBoolean(Object receiver, int a0, int a1) {
+        return callPrimitive(receiver, 'Z', 'I', 2, a0, a1) != 0;
+    }
+
+    public boolean invokeBoolean(Object receiver, long a0) {
+        return callPrimitive(receiver, 'Z', 'J', 1, a0, 0) != 0;
+    }
+
+    public boolean invokeBoolean(Object receiver, long a0, long a1) {
+        return callPrimitive(receiver, 'Z', 'J', 2, a0, a1) != 0;
+    }
+
+    public int invokeInt(Object receiver, int a0) {
+        return (int) callPrimitive(receiver, 'I', 'I', 1, a0, 0);
+    }
+
+    public int invokeInt(Object receiver, int a0, int a1) {
+        return (int) callPrimitive(receiver, 'I', 'I', 2, a0, a1);
+    }
+
+    public int invokeInt(Object receiver, long a0) {
+        return (int) callPrimitive(receiver, 'I', 'J', 1, a0, 0);
+    }
+
+    public int invokeInt(Object receiver, long a0, long a1) {
+        return (int) callPrimitive(receiver, 'I', 'J', 2, a0, a1);
+    }
+
+    public long invokeLong(Object receiver, int a0) {
+        return callPrimitive(receiver, 'J', 'I', 1, a0, 0);
+    }
+
+    public long invokeLong(Object receiver, int a0, int a1) {
+        return callPrimitive(receiver, 'J', 'I', 2, a0, a1);
+    }
+
+    public long invokeLong(Object receiver, long a0) {
+        return callPrimitive(receiver, 'J', 'J', 1, a0, 0);
+    }
+
+    public long invokeLong(Object receiver, long a0, long a1) {
+        return callPrimitive(receiver, 'J', 'J', 2, a0, a1);
+    }
+
+    private Object call(Object receiver, Object[] args) {
+        try {
+            return callOriginal(receiver, args);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Calling original method failed", e);
+        } catch (InvocationTargetException e) {
+            throw OriginalMethod.<RuntimeException>throwUnchecked(e.getTargetException());
+        } finally {
+            Arrays.fill(args, null);
+        }
+    }
+
+    Object callOriginal(Object receiver, Object[] args) throws IllegalAccessException, InvocationTargetException {
+        HookDispatch.Frame caller = HookDispatch.top();
+        HookDispatch.Frame barrier = enterOriginal(args);
+        HookMetrics metrics = HookMetrics.ENABLED ? getMetrics() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            return invokeBelow(receiver, args);
+        } finally {
+            exitOriginal(caller, barrier, metrics, start);
+        }
+    }
+
+    /**
+     * Call the original method with the given int or long arguments through JNI, see the typed
+     * invoke methods.
+     *
+     * @return The result, widened to long
+     */
+    private long callPrimitive(Object receiver, char returnType, char argumentType, int count, long a0, long a1) {
+        if (!takes(returnType, argumentType, count)) {
+            Object result = call(receiver, boxed(argumentType, count, a0, a1));
+            switch (returnType) {
+                case 'Z':
+                    return (Boolean) result ? 1 : 0;
+                case 'I':
+                    return (Integer) result;
+                case 'J':
+                    return (Long) result;
+                default:
+                    return 0;
+            }
+        }
+        HookDispatch.Frame caller = HookDispatch.top();
+        HookDispatch.Frame barrier = enterOriginal(MethodTracer.ENABLED ? traced(argumentType, count, a0, a1) : null);
+        HookMetrics metrics = HookMetrics.ENABLED ? getMetrics() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            OriginalMethod below = this.below;
+            if (below == null) {
+                return Native.callPrimitive(method.getDeclaringClass(), backupId(), receiver,
+                        callFlags(false, argumentType), returnType, count, a0, a1);
+            }
+            return Native.callPrimitive(below.entry.getDeclaringClass(), below.entryId(), receiver,
+                    callFlags(true, argumentType), returnType, count, a0, a1);
+        } finally {
+            exitOriginal(caller, barrier, metrics, start);
+        }
+    }
+
+    /**
+     * Same as {@link #callPrimitive} for methods returning an object.
+     */
+    private Object callObject(Object receiver, char argumentType, int count, long a0, long a1) {
+        if (!takes('L', argumentType, count)) {
+            return call(receiver, boxed(argumentType, count, a0, a1));
+        }
+        HookDispatch.Frame caller = HookDispatch.top();
+        HookDispatch.Frame barrier = enterOriginal(MethodTracer.ENABLED ? traced(argumentType, count, a0, a1) : null);
+        HookMetrics metrics = HookMetrics.ENABLED ? getMetrics() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            OriginalMethod below = this.below;
+            if (below == null) {
+                return Native.callObject(method.getDeclaringClass(), backupId(), receiver,
+                        callFlags(false, argumentType), count, a0, a1);
+            }
+            return Native.callObject(below.entry.getDeclaringClass(), below.entryId(), receiver,
+                    callFlags(true, argumentType), count, a0, a1);
+        } finally {
+            exitOriginal(caller, barrier, metrics, start);
+        }
+    }
+
+    /**
+     * @return Whether the hooked method takes count arguments of the given type and returns the
+     * given type, so it can be called through JNI
+     */
+    private boolean takes(char returnType, char argumentType, int count) {
+        if (this.returnType != returnType || parameterTypes.length() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (parameterTypes.charAt(i) != argumentType) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int callFlags(boolean layer, char argumentType) {
+        int flags = argumentType == 'J' ? Native.CALL_WIDE : 0;
+        if (!hasReceiver) {
+            flags |= Native.CALL_STATIC;
+        } else if (layer) {
+            // Hooks are static and get the receiver as first argument
+            flags |= Native.CALL_RECEIVER_AS_ARGUMENT;
+        }
+        return flags;
+    }
+
+    private long backupId() {
+        long id = backupId;
+        if (id == 0) {
+            id = Native.methodId(method);
+            backupId = id;
+        }
+        return id;
+    }
+
+    private long entryId() {
+        long id = entryId;
+        if (id == 0) {
+            id = Native.methodId(entry);
+            entryId = id;
+        }
+        return id;
+    }
+
+    /**
+     * Box int or long arguments for a hooked method that can't be called through JNI. int
+     * arguments might have been widened from byte, short or char at the call site, they are boxed
+     * as the type of the parameter then, as Method.invoke does not narrow them.
+     */
+    private Object[] boxed(char argumentType, int count, long a0, long a1) {
+        switch (count) {
+            case 0:
+                return args();
+            case 1:
+                return args(box(0, argumentType, a0));
+            default:
+                return args(box(0, argumentType, a0), box(1, argumentType, a1));
+        }
+    }
+
+    private Object box(int index, char argumentType, long value) {
+        switch (index < parameterTypes.length() ? parameterTypes.charAt(index) : 'L') {
+            case 'B':
+                return (byte) value;
+            case 'S':
+                return (short) value;
+            case 'C':
+                return (char) value;
+            default:
+                return argumentType == 'J' ? (Object) value : (Object) (int) value;
+        }
+    }
+
+    /**
+     * @return The arguments for {@link MethodTracer}, which takes them boxed
+     */
+    private static Object[] traced(char argumentType, int count, long a0, long a1) {
+        Object[] args = new Object[count];
+        for (int i = 0; i < count; i++) {
+            long value = i == 0 ? a0 : a1;
+            args[i] = argumentType == 'J' ? (Object) value : (Object) (int) value;
+        }
+        return args;
+    }
+
+    private HookDispatch.Frame enterOriginal(Object[] args) {
+        // Code called by the original method does not run in the hook
+        HookDispatch.Frame barrier = HookDispatch.enter(null);
+        if (MethodTracer.ENABLED) {
+            MethodTracer.event(MethodTracer.ENTER_ORIGINAL, original, args);
+        }
+        return barrier;
+    }
+
+    /**
+     * @param start The time the original method was called at, or 0 if its time is not measured
+     */
+    private void exitOriginal(HookDispatch.Frame caller, HookDispatch.Frame barrier, HookMetrics metrics, long start) {
+        if (start != 0) {
+            long time = System.nanoTime() - start;
+            metrics.original.record(time);
+            if (caller != null && caller.original == this) {
+                caller.originalTime += time;
+            }
+        }
+        if (MethodTracer.ENABLED) {
+            MethodTracer.event(MethodTracer.EXIT_ORIGINAL, original, null);
+        }
+        barrier.exit();
+    }
+
+    /**
+     * Call the backup, or the hook of the layer below.
+     */
+    private Object invokeBelow(Object receiver, Object[] args) throws IllegalAccessException,
+            InvocationTargetException {
+        OriginalMethod below = this.below;
+        if (below == null) {
+            return method.invoke(receiver, args);
+        }
+        if (!hasReceiver) {
+            return below.entry.invoke(null, args);
+        }
+        Object[] hookArgs = new Object[args.length + 1];
+        hookArgs[0] = receiver;
+        System.arraycopy(args, 0, hookArgs, 1, args.length);
+        return below.entry.invoke(null, hookArgs);
+    }
+
+    private static Object[] args() {
+        return ARGS.get()[0];
+    }
+
+    private static Object[] args(Object a0) {
+        Object[] args = ARGS.get()[1];
+        args[0] = a0;
+        return args;
+    }
+
+    private static Object[] args(Object a0, Object a1) {
+        Object[] args = ARGS.get()[2];
+        args[0] = a0;
+        args[1] = a1;
+        return args;
+    }
+
+    private static Object[] args(Object a0, Object a1, Object a2) {
+        Object[] args = ARGS.get()[3];
+        args[0] = a0;
+        args[1] = a1;
+        args[2] = a2;
+        return args;
+    }
+
+    private static Object[] args(Object a0, Object a1, Object a2, Object a3) {
+        Object[] args = ARGS.get()[4];
+        args[0] = a0;
+        args[1] = a1;
+        args[2] = a2;
+        args[3] = a3;
+        return args;
+    }
+
+    private static Object[] args(Object a0, Object a1, Object a2, Object a3, Object a4) {
+        Object[] args = ARGS.get()[5];
+        args[0] = a0;
+        args[1] = a1;
+        args[2] = a2;
+        args[3] = a3;
+        args[4] = a4;
+        return args;
+    }
+
+    private static Object[] args(Object a0, Object a1, Object a2, Object a3, Object a4, Object a5) {
+        Object[] args = ARGS.get()[6];
+        args[0] = a0;
+        args[1] = a1;
+        args[2] = a2;
+        args[3] = a3;
+        args[4] = a4;
+        args[5] = a5;
+        return args;
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T invokeStatic(Object... args) {
         return (T) invoke(null, args);
     }
 
+    /**
+     * @return The original method of the given hooked method, or null if it is not hooked.
+     * Earlier versions returned an OriginalMethod that failed only when invoked instead.
+     */
     public static OriginalMethod byOriginal(Method original) {
         return byOriginal((Object) original);
     }
 
+    /**
+     * @see #byOriginal(Method)
+     */
     public static OriginalMethod byOriginal(Constructor<?> original) {
         return byOriginal((Object) original);
     }
 
+    /**
+     * @return The lowest layer of the given hooked method, which calls the method itself, or null
+     * if it is not hooked
+     */
     static OriginalMethod byOriginal(Object originalMethod) {
-        return new OriginalMethod(backupMethods.get(ArtMethod.of(originalMethod)));
+        OriginalMethod original = backups.get(ArtMethod.of(originalMethod));
+        while (original != null && original.below != null) {
+            original = original.below;
+        }
+        return original;
     }
 
     public static OriginalMethod byHook(Method hook) {
+        OriginalMethod original = hookLayers.get(hook);
+        if (original != null) {
+            return original;
+        }
         try {
             return byOriginal(findTargetMethod(hook));
         } catch (Exception e) {
@@ -74,30 +764,66 @@ public class OriginalMethod {
         }
     }
 
+    /**
+     * @return The original method of the hook with the given {@link BackupIdentifier}, or null if
+     * no such hook is installed. Earlier versions returned an OriginalMethod that failed only when
+     * invoked instead.
+     */
     public static OriginalMethod by(String identifier) {
-        return new OriginalMethod(identifiedBackups.get(identifier));
+        return identifiedBackups.get(identifier);
     }
 
     public static OriginalMethod by($ hookAnchor) {
         return by(hookAnchor.getClass());
     }
 
+    /**
+     * The anchor is resolved through its enclosing hook method on first use and cached until the
+     * hook is removed. Anonymous classes can't be listed through reflection, so they are not
+     * looked for when hooking.
+     */
     public static OriginalMethod by(Class cls) {
-        return byHook(cls.getEnclosingMethod());
+        OriginalMethod original = anchors.get(cls);
+        if (original == null) {
+            original = byHook(cls.getEnclosingMethod());
+            if (original != null) {
+                anchors.put(cls, original);
+            }
+        }
+        return original;
     }
 
+    /**
+     * @return The original method of the innermost hook running on this thread, or null if
+     * there is none. Only hooks called through a bridge generated by the ArtHook annotation
+     * processor are known, see {@link HookDispatch}.
+     */
+    public static OriginalMethod current() {
+        return HookDispatch.current();
+    }
+
+    /**
+     * If all installed hooks are called through a bridge, this is {@link #current()}. Otherwise
+     * the stack is searched, as a hook without bridge might run on top of the current hook.
+     * <p/>
+     * Only hooks installed by {@link ArtHook#hook(Class)} with a {@link HookRegistry} generated by
+     * the ArtHook annotation processor are called through a bridge. While any hook installed by
+     * {@link ArtHook#hook(Method)}, {@link ArtHook#hookAll} or for a class without registry is
+     * installed, every call walks the stack.
+     */
     public static OriginalMethod byStack() {
+        OriginalMethod current = current();
+        if (current != null && unbridgedHooks.get() == 0) {
+            return current;
+        }
         for (StackTraceElement element : new Exception().getStackTrace()) {
-            try {
-                Class cls = Class.forName(element.getClassName());
-                for (Method method : cls.getDeclaredMethods()) {
-                    if (method.getName().equals(element.getMethodName()) &&
-                            method.isAnnotationPresent(Hook.class)) {
-                        logd(TAG, "Calling method hooked by " + method + " as original");
-                        return byHook(method);
-                    }
+            Map<String, OriginalMethod> methods = hooks.get(element.getClassName());
+            OriginalMethod original = methods != null ? methods.get(element.getMethodName()) : null;
+            if (original != null) {
+                if (isLoggable(Log.DEBUG)) {
+                    logd(TAG, "Calling method hooked by " + original.hook + " as original");
                 }
-            } catch (Exception ignored) {
+                return original;
             }
         }
         throw new RuntimeException("must be called from a hook method");
@@ -107,18 +833,159 @@ public class OriginalMethod {
      * A dirty trick to throw a checked exception like if it was unchecked.
      */
     @SuppressWarnings("unchecked")
-    private static <T extends Throwable> RuntimeException throwUnchecked(Throwable t) throws T {
+    static <T extends Throwable> RuntimeException throwUnchecked(Throwable t) throws T {
         throw (T) t;
     }
 
+    /**
+     * Replaces all hooks stored for the given method.
+     */
     public static void store(Method originalMethod, Method backupMethod, String backupIdent) {
-        store((Object) originalMethod, backupMethod, backupIdent);
+        remove(originalMethod);
+        store(originalMethod, backupMethod, null, null, null, backupIdent);
     }
 
-    static void store(Object originalMethod, Method backupMethod, String backupIdent) {
-        backupMethods.put(ArtMethod.of(originalMethod), backupMethod);
+    /**
+     * Forget all hooks of the given method, after it was unhooked.
+     */
+    static void remove(Object originalMethod) {
+        ArtMethod key = ArtMethod.of(originalMethod);
+        for (OriginalMethod layer = backups.remove(key); layer != null; layer = layer.below) {
+            forget(layer);
+        }
+        HookChain.remove(key);
+        HookMetrics.remove(key);
+    }
+
+    /**
+     * Forget the given hook, after it was unhooked. The layers above and below are linked.
+     *
+     * @return The topmost remaining layer of the hooked method, or null if none remains
+     */
+    static OriginalMethod removeLayer(OriginalMethod layer) {
+        ArtMethod key = ArtMethod.of(layer.original);
+        OriginalMethod below = layer.below;
+        if (below != null) {
+            below.above = layer.above;
+        }
+        OriginalMethod top;
+        if (layer.above != null) {
+            layer.above.below = below;
+            top = backups.get(key);
+        } else if (below != null) {
+            backups.put(key, below);
+            top = below;
+        } else {
+            backups.remove(key);
+            HookChain.remove(key);
+            HookMetrics.remove(key);
+            top = null;
+        }
+        forget(layer);
+        updateCallbacks(top);
+        return top;
+    }
+
+    private static void forget(OriginalMethod layer) {
+        identifiedBackups.values().remove(layer);
+        anchors.values().remove(layer);
+        if (layer.bridged != null) {
+            layer.bridged.clearOriginal(layer);
+        }
+        if (layer.hook != null) {
+            hookLayers.remove(layer.hook, layer);
+            if (layer.bridged == null) {
+                unbridgedHooks.decrementAndGet();
+            }
+            synchronized (hooks) {
+                String className = layer.hook.getDeclaringClass().getName();
+                Map<String, OriginalMethod> methods = hooks.get(className);
+                if (methods != null && methods.remove(layer.hook.getName(), layer) && methods.isEmpty()) {
+                    hooks.remove(className);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The topmost layer of the given hooked method, which the hook page jumps to, or null
+     * if it is not hooked
+     */
+    static OriginalMethod byTop(ArtMethod original) {
+        return backups.get(original);
+    }
+
+    static boolean isHooked(ArtMethod original) {
+        return backups.containsKey(original);
+    }
+
+    /**
+     * @return Whether callbacks of the given method can run, see {@link #runsCallbacks()}
+     */
+    static boolean runsCallbacks(ArtMethod original) {
+        for (OriginalMethod layer = backups.get(original); layer != null; layer = layer.below) {
+            if (layer.runsCallbacks) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Store a hook of the given method. If the method is already hooked, the hook becomes the
+     * topmost layer.
+     *
+     * @param hookMethod  The @Hook method calling the backup, null if unknown
+     * @param entryMethod The method the hook page jumps to, the hook or its bridge
+     * @param bridged     The descriptor of the hook if the entry is its bridge, see {@link HookDispatch}
+     */
+    static OriginalMethod store(Object originalMethod, Method backupMethod, Method hookMethod, Method entryMethod,
+                                HookDescriptor bridged, String backupIdent) {
+        OriginalMethod original = new OriginalMethod((Member) originalMethod, backupMethod, hookMethod, entryMethod,
+                bridged);
+        ArtMethod key = ArtMethod.of(originalMethod);
+        OriginalMethod top = backups.get(key);
+        if (top != null) {
+            original.below = top;
+            top.above = original;
+        }
+        backups.put(key, original);
+        updateCallbacks(original);
+        if (bridged != null) {
+            bridged.setOriginal(original);
+        }
         if (backupIdent != null) {
-            identifiedBackups.put(backupIdent, backupMethod);
+            identifiedBackups.put(backupIdent, original);
+        }
+        if (hookMethod != null) {
+            hookLayers.put(hookMethod, original);
+            if (bridged == null) {
+                unbridgedHooks.incrementAndGet();
+            }
+            synchronized (hooks) {
+                String className = hookMethod.getDeclaringClass().getName();
+                Map<String, OriginalMethod> methods = hooks.get(className);
+                if (methods == null) {
+                    methods = new ConcurrentHashMap<>();
+                    hooks.put(className, methods);
+                }
+                // Like on the stack, overloads of a hook can't be told apart
+                if (!methods.containsKey(hookMethod.getName())) {
+                    methods.put(hookMethod.getName(), original);
+                }
+            }
+        }
+        return original;
+    }
+
+    /**
+     * Let the topmost layer with a bridge run the callbacks.
+     */
+    private static void updateCallbacks(OriginalMethod top) {
+        boolean found = false;
+        for (OriginalMethod layer = top; layer != null; layer = layer.below) {
+            layer.runsCallbacks = !found && layer.bridged != null;
+            found |= layer.bridged != null;
         }
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects writes to (executable) memory, so they can be applied with a single call to
+ * {@link Memory#patch(long[], byte[][])}.
+ */
+public final class PatchBatch {
+    private final List<Long> addresses = new ArrayList<>();
+    private final List<byte[]> payloads = new ArrayList<>();
+
+    public void add(long address, byte[] payload) {
+        addresses.add(address);
+        payloads.add(Assertions.argumentNotNull(payload, "payload"));
+    }
+
+    public int size() {
+        return addresses.size();
+    }
+
+    /**
+     * Write all collected payloads.
+     *
+     * @return false if the memory could not be unprotected, nothing was written in this case
+     */
+    public boolean apply() {
+        long[] addrs = new long[addresses.size()];
+        for (int i = 0; i < addrs.length; i++) {
+            addrs[i] = addresses.get(i);
+        }
+        return Memory.patch(addrs, payloads.toArray(new byte[payloads.size()][]));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+/**
+ * Allocates fixed size objects in native, non-executable memory (like cloned ArtMethods) from
+ * shared mappings of {@link #SLAB_SIZE} bytes.
+ * <p/>
+ * Objects are never freed: the runtime might still reference a cloned ArtMethod at any time,
+ * like from the stack of a suspended thread or from the Method object wrapping it.
+ */
+public final class Slab {
+    public static final int SLAB_SIZE = 16 * 1024;
+
+    private final int objectSize;
+    private long slabAddress;
+    private int slabOffset = SLAB_SIZE;
+
+    /**
+     * @param objectSize Size of a single object
+     * @param alignment  Required alignment of every object, has to be a power of 2
+     */
+    public Slab(int objectSize, int alignment) {
+        if (objectSize <= 0 || objectSize > SLAB_SIZE)
+            throw new IllegalArgumentException("objectSize must be between 1 and " + SLAB_SIZE);
+        if (Integer.bitCount(alignment) != 1)
+            throw new IllegalArgumentException("alignment must be a power of 2");
+        this.objectSize = (objectSize + alignment - 1) & -alignment;
+    }
+
+    public int getObjectSize() {
+        return objectSize;
+    }
+
+    /**
+     * @return The address of a new object
+     */
+    public synchronized long allocate() {
+        if (slabOffset + objectSize > SLAB_SIZE) {
+            long slab = Memory.mapData(SLAB_SIZE);
+            if (slab == 0) {
+                throw new OutOfMemoryError("Can't map slab of size " + SLAB_SIZE);
+            }
+            slabAddress = slab;
+            slabOffset = 0;
+        }
+        long object = slabAddress + slabOffset;
+        slabOffset += objectSize;
+        return object;
+    }
+}
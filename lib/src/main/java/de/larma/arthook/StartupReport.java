@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How long the one-time initialization of ArtHook took, split into phases. Nothing is
+ * initialized when ArtHook is loaded, every phase runs on first use:
+ * <ul>
+ * <li>{@link #VERSION_HELPER}: loading the {@link de.larma.arthook.avers.VersionHelper} of
+ * this Android version and the native library</li>
+ * <li>{@link #ARCH_DETECTION}: choosing the instruction set</li>
+ * <li>{@link #FIRST_RESOLUTION}: finding the ArtMethod of the first hooked method</li>
+ * <li>{@link #FIRST_PATCH}: writing the first hooks to memory</li>
+ * </ul>
+ * The phases do not overlap, so their durations add up to ArtHook's contribution to the start
+ * of the app.
+ */
+public final class StartupReport {
+    public static final int VERSION_HELPER = 0;
+    public static final int ARCH_DETECTION = 1;
+    public static final int FIRST_RESOLUTION = 2;
+    public static final int FIRST_PATCH = 3;
+
+    private static final String[] NAMES = {"versionHelper", "archDetection", "firstResolution", "firstPatch"};
+
+    private static final AtomicLongArray durations = new AtomicLongArray(NAMES.length);
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            durations.set(i, -1);
+        }
+    }
+
+    private final long[] snapshot;
+
+    private StartupReport(long[] snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return The time the given phase starts, or 0 if it was recorded before and is not timed
+     * again
+     */
+    static long start(int phase) {
+        return durations.get(phase) == -1 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the duration of the given phase, unless it was recorded before.
+     *
+     * @param startNanos Returned by {@link #start(int)}
+     */
+    static void record(int phase, long startNanos) {
+        if (startNanos != 0 && durations.get(phase) == -1) {
+            durations.compareAndSet(phase, -1, System.nanoTime() - startNanos);
+        }
+    }
+
+    static StartupReport snapshot() {
+        long[] snapshot = new long[NAMES.length];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = durations.get(i);
+        }
+        return new StartupReport(snapshot);
+    }
+
+    /**
+     * @return The duration of the given phase in nanoseconds, or -1 if it did not run yet
+     */
+    public long getDuration(int phase) {
+        return snapshot[phase];
+    }
+
+    /**
+     * @return The duration of all phases that ran in nanoseconds
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long duration : snapshot) {
+            if (duration > 0) total += duration;
+        }
+        return total;
+    }
+
+    /**
+     * @return true if all phases ran
+     */
+    public boolean isComplete() {
+        for (long duration : snapshot) {
+            if (duration < 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("StartupReport{");
+        for (int i = 0; i < snapshot.length; i++) {
+            sb.append(NAMES[i]).append('=');
+            if (snapshot[i] < 0) {
+                sb.append('-');
+            } else {
+                sb.append(snapshot[i] / 1000).append("us");
+            }
+            sb.append(", ");
+        }
+        return sb.append("total=").append(getTotal() / 1000).append("us}").toString();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook;
+
+import static de.larma.arthook.DebugHelper.addrHex;
+
+/**
+ * Records what ArtHook does to memory as binary events in a ring buffer of the last
+ * {@link #CAPACITY} events.
+ * <p/>
+ * Recording an event only stores a few numbers, the events are formatted when {@link #dump()}
+ * is called.
+ */
+public final class Trace {
+    public static final int CAPACITY = 1024;
+
+    public static final int MAP = 1;
+    public static final int UNMAP = 2;
+    public static final int ALLOCATE_EXECUTABLE = 3;
+    public static final int FREE_EXECUTABLE = 4;
+    public static final int PUT = 5;
+    public static final int PATCH = 6;
+    public static final int COPY = 7;
+    public static final int WRITE_ACCESS_FLAGS = 8;
+    public static final int WRITE_ENTRY_POINT = 9;
+    public static final int WRITE_HOOK_PAGE = 10;
+    public static final int ACTIVATE = 11;
+    public static final int RETIRE_EXECUTABLE = 12;
+    public static final int DEACTIVATE = 13;
+    public static final int SET_ENABLED = 14;
+
+    private static final String[] NAMES = {null, "map", "unmap", "allocateExecutable", "freeExecutable", "put",
+            "patch", "copy", "writeAccessFlags", "writeEntryPoint", "writeHookPage", "activate",
+            "retireExecutable", "deactivate", "setEnabled"};
+
+    /**
+     * time, type, arg0, arg1
+     */
+    private static final int EVENT_SIZE = 4;
+
+    /**
+     * Tracing is off by default, recording an event takes a lock
+     */
+    public static volatile boolean ENABLED = false;
+
+    private static final long[] events = new long[CAPACITY * EVENT_SIZE];
+    private static long count;
+
+    private Trace() {
+    }
+
+    public static void event(int type, long arg0, long arg1) {
+        if (!ENABLED) return;
+        long time = System.nanoTime();
+        synchronized (events) {
+            int offset = (int) (count % CAPACITY) * EVENT_SIZE;
+            events[offset] = time;
+            events[offset + 1] = type;
+            events[offset + 2] = arg0;
+            events[offset + 3] = arg1;
+            count++;
+        }
+    }
+
+    /**
+     * @return The number of events recorded since the last {@link #clear()}, including those
+     * that were already overwritten.
+     */
+    public static long getCount() {
+        synchronized (events) {
+            return count;
+        }
+    }
+
+    public static void clear() {
+        synchronized (events) {
+            count = 0;
+        }
+    }
+
+    /**
+     * @return The recorded events, oldest first, one per line
+     */
+    public static String dump() {
+        long[] copy;
+        long first;
+        long end;
+        synchronized (events) {
+            copy = events.clone();
+            end = count;
+            first = Math.max(0, count - CAPACITY);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (long i = first; i < end; i++) {
+            int offset = (int) (i % CAPACITY) * EVENT_SIZE;
+            int type = (int) copy[offset + 1];
+            sb.append(copy[offset]).append(' ')
+                    .append(type > 0 && type < NAMES.length ? NAMES[type] : Integer.toString(type)).append(' ')
+                    .append(addrHex(copy[offset + 2])).append(' ')
+                    .append(addrHex(copy[offset + 3])).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook.avers;
+
+import de.larma.arthook.Memory;
+import de.larma.arthook.Native;
+
+/**
+ * Byte offsets of the fields of a native ArtMethod on the current system.
+ * <p/>
+ * All accessors take the address of the ArtMethod (see {@link de.larma.arthook.ArtMethod#getAddress()}).
+ * Fields with an offset of {@link #UNKNOWN} are not accessible natively and have to be accessed
+ * using reflection instead.
+ */
+public final class ArtMethodLayout {
+    public static final int UNKNOWN = -1;
+
+    private static final boolean SIXTY_FOUR = Native.is64Bit();
+    private static final int POINTER_SIZE = SIXTY_FOUR ? 8 : 4;
+
+    private final int accessFlags;
+    private final int entryPointFromInterpreter;
+    private final int entryPointFromJni;
+    private final int entryPointFromQuickCompiledCode;
+
+    /**
+     * @param accessFlags                     Offset of the 32 bit access flags
+     * @param entryPointFromInterpreter       Offset of the pointer sized interpreter entry point
+     * @param entryPointFromJni               Offset of the pointer sized JNI entry point
+     * @param entryPointFromQuickCompiledCode Offset of the pointer sized quick code entry point
+     */
+    public ArtMethodLayout(int accessFlags, int entryPointFromInterpreter, int entryPointFromJni,
+                           int entryPointFromQuickCompiledCode) {
+        checkPointer(entryPointFromInterpreter, entryPointFromJni, entryPointFromQuickCompiledCode);
+        checkPointer(entryPointFromJni, entryPointFromInterpreter, entryPointFromQuickCompiledCode);
+        checkPointer(entryPointFromQuickCompiledCode, entryPointFromInterpreter, entryPointFromJni);
+        this.accessFlags = accessFlags;
+        this.entryPointFromInterpreter = entryPointFromInterpreter;
+        this.entryPointFromJni = entryPointFromJni;
+        this.entryPointFromQuickCompiledCode = entryPointFromQuickCompiledCode;
+    }
+
+    /**
+     * Layout of an ArtMethod whose pointer sized fields start at the given offset. The index of
+     * every such field is counted in pointers, using the pointer size of this system.
+     *
+     * @param accessFlags        Offset of the 32 bit access flags
+     * @param nativeFieldsOffset Offset of the first pointer sized field
+     * @param interpreterIndex   Index of the interpreter entry point, or {@link #UNKNOWN}
+     * @param jniIndex           Index of the JNI entry point, or {@link #UNKNOWN}
+     * @param quickIndex         Index of the quick code entry point, or {@link #UNKNOWN}
+     */
+    public static ArtMethodLayout ofNativeFields(int accessFlags, int nativeFieldsOffset, int interpreterIndex,
+                                                 int jniIndex, int quickIndex) {
+        return new ArtMethodLayout(accessFlags, pointerOffset(nativeFieldsOffset, interpreterIndex),
+                pointerOffset(nativeFieldsOffset, jniIndex), pointerOffset(nativeFieldsOffset, quickIndex));
+    }
+
+    private static int pointerOffset(int nativeFieldsOffset, int index) {
+        return index == UNKNOWN ? UNKNOWN : nativeFieldsOffset + POINTER_SIZE * index;
+    }
+
+    /**
+     * Pointers are read in one access, so they have to be aligned and must not overlap.
+     */
+    private static void checkPointer(int offset, int other1, int other2) {
+        if (offset == UNKNOWN)
+            return;
+        if (offset < 0 || offset % POINTER_SIZE != 0)
+            throw new IllegalArgumentException("Pointer offset " + offset + " is not aligned to " + POINTER_SIZE);
+        if (offset == other1 || offset == other2)
+            throw new IllegalArgumentException("Pointer offset " + offset + " is used twice");
+    }
+
+    public boolean hasAccessFlags() {
+        return accessFlags != UNKNOWN;
+    }
+
+    public boolean hasEntryPointFromInterpreter() {
+        return entryPointFromInterpreter != UNKNOWN;
+    }
+
+    public boolean hasEntryPointFromJni() {
+        return entryPointFromJni != UNKNOWN;
+    }
+
+    public boolean hasEntryPointQuick() {
+        return entryPointFromQuickCompiledCode != UNKNOWN;
+    }
+
+    public int accessFlags(long address) {
+        return Memory.getInt(address + accessFlags);
+    }
+
+    public void accessFlags(long address, int value) {
+        Memory.putInt(address + accessFlags, value);
+    }
+
+    public long entryPointFromInterpreter(long address) {
+        return getPointer(address + entryPointFromInterpreter);
+    }
+
+    public void entryPointFromInterpreter(long address, long value) {
+        putPointer(address + entryPointFromInterpreter, value);
+    }
+
+    public long entryPointFromJni(long address) {
+        return getPointer(address + entryPointFromJni);
+    }
+
+    public void entryPointFromJni(long address, long value) {
+        putPointer(address + entryPointFromJni, value);
+    }
+
+    public long entryPointQuick(long address) {
+        return getPointer(address + entryPointFromQuickCompiledCode);
+    }
+
+    public void entryPointQuick(long address, long value) {
+        putPointer(address + entryPointFromQuickCompiledCode, value);
+    }
+
+    private static long getPointer(long address) {
+        if (SIXTY_FOUR) {
+            return Memory.getLong(address);
+        } else {
+            return Memory.getInt(address) & 0xFFFFFFFFL;
+        }
+    }
+
+    private static void putPointer(long address, long value) {
+        if (SIXTY_FOUR) {
+            Memory.putLong(address, value);
+        } else {
+            Memory.putInt(address, (int) value);
+        }
+    }
+}
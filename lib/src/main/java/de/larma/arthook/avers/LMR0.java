@@ -62,8 +62,7 @@ public class LMR0 extends VersionHelper {
     public void copy(ArtMethod src, ArtMethod dst) {
         try {
             // Copy fields of java.lang.reflect.ArtMethod (this.artMethod => clone.artMethod)
-            for (Field field : Class.forName(ART_METHOD_CLASS_NAME).getDeclaredFields()) {
-                field.setAccessible(true);
+            for (Field field : getAccessibleFields(ART_METHOD_CLASS_NAME)) {
                 dst.set(field, src.get(field));
             }
             dst.associatedMethod = newAssociatedMethod(src.associatedMethod, dst);
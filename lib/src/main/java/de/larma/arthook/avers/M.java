@@ -20,19 +20,14 @@ import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import de.larma.arthook.ArtMethod;
 import de.larma.arthook.Memory;
 import de.larma.arthook.Native;
+import de.larma.arthook.Slab;
 
 import static de.larma.arthook.ArtMethod.ABSTRACT_METHOD_CLASS_NAME;
-import static de.larma.arthook.ArtMethod.FIELD_ACCESS_FLAGS;
 import static de.larma.arthook.ArtMethod.FIELD_ART_METHOD;
-import static de.larma.arthook.ArtMethod.FIELD_ENTRY_POINT_FROM_INTERPRETER;
-import static de.larma.arthook.ArtMethod.FIELD_ENTRY_POINT_FROM_JNI;
-import static de.larma.arthook.ArtMethod.FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE;
 
 public class M extends VersionHelper {
     private static final int FIELD_ENTRY_POINT_FROM_INTERPRETER_NATIVE_INDEX = 0;
@@ -46,68 +41,21 @@ public class M extends VersionHelper {
     private static final int M_NATIVE_FIELDS = Native.is64Bit() ? M_NATIVE_FIELDS_64 : M_NATIVE_FIELDS_32;
     private static final int M_OBJECT_SIZE = M_MIRROR_FIELDS + M_NATIVE_FIELDS;
 
-    @Override
-    public Object createArtMethod() {
-        return Memory.map(M_OBJECT_SIZE);
-    }
+    private static final ArtMethodLayout LAYOUT = ArtMethodLayout.ofNativeFields(4 * FIELD_ACCESS_FLAGS_MIRROR_INDEX, M_MIRROR_FIELDS,
+            FIELD_ENTRY_POINT_FROM_INTERPRETER_NATIVE_INDEX,
+            FIELD_ENTRY_POINT_FROM_JNI_NATIVE_INDEX,
+            FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE_NATIVE_INDEX);
 
-    @Override
-    public Object getArtMethodFieldNative(ArtMethod artMethod, String name) {
-        switch (name) {
-            case FIELD_ENTRY_POINT_FROM_INTERPRETER:
-                return getNative((Long) artMethod.artMethod, FIELD_ENTRY_POINT_FROM_INTERPRETER_NATIVE_INDEX, false);
-            case FIELD_ENTRY_POINT_FROM_JNI:
-                return getNative((Long) artMethod.artMethod, FIELD_ENTRY_POINT_FROM_JNI_NATIVE_INDEX, false);
-            case FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE:
-                return getNative((Long) artMethod.artMethod, FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE_NATIVE_INDEX, false);
-        }
-        return super.getArtMethodFieldNative(artMethod, name);
-    }
-
-    private long getNative(long objectAddress, int num, boolean mirror) {
-        int intSize = Native.is64Bit() && !mirror ? 8 : 4;
-        byte[] bytes = Memory.get(objectAddress + (mirror ? 0 : M_MIRROR_FIELDS) + intSize * num, intSize);
-        if (intSize == 8) {
-            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
-        } else {
-            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
-        }
-    }
+    private static final Slab ART_METHOD_SLAB = new Slab(M_OBJECT_SIZE, ART_METHOD_ALIGNMENT);
 
     @Override
-    public boolean setArtMethodFieldNative(ArtMethod artMethod, String name, Object value) {
-        switch (name) {
-            case FIELD_ENTRY_POINT_FROM_INTERPRETER:
-                setNative(artMethod, FIELD_ENTRY_POINT_FROM_INTERPRETER_NATIVE_INDEX, (Long) value);
-                return true;
-            case FIELD_ENTRY_POINT_FROM_JNI:
-                setNative(artMethod, FIELD_ENTRY_POINT_FROM_JNI_NATIVE_INDEX, (Long) value);
-                return true;
-            case FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE:
-                setNative(artMethod, FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE_NATIVE_INDEX, (Long) value);
-                return true;
-            case FIELD_ACCESS_FLAGS:
-                setMirror(artMethod, FIELD_ACCESS_FLAGS_MIRROR_INDEX, (int) value);
-                return true;
-        }
-        return super.setArtMethodFieldNative(artMethod, name, value);
-    }
-
-    private void setNative(ArtMethod artMethod, int num, long value) {
-        long objectAddress = (long) artMethod.artMethod;
-        int intSize = Native.is64Bit() ? 8 : 4;
-        byte[] bytes;
-        if (Native.is64Bit()) {
-            bytes = ByteBuffer.allocate(intSize).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
-        } else {
-            bytes = ByteBuffer.allocate(intSize).order(ByteOrder.LITTLE_ENDIAN).putInt((int) value).array();
-        }
-        Memory.put(bytes, objectAddress + M_MIRROR_FIELDS + intSize * num);
+    public Object createArtMethod() {
+        return ART_METHOD_SLAB.allocate();
     }
 
-    private void setMirror(ArtMethod artMethod, int num, int value) {
-        byte[] bytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
-        Memory.put(bytes, ((long) artMethod.artMethod) + 4 * num);
+    @Override
+    public ArtMethodLayout getLayout() {
+        return LAYOUT;
     }
 
     @Override
@@ -119,14 +67,10 @@ public class M extends VersionHelper {
 
             Method m = methodConstructor.newInstance();
             m.setAccessible(true);
-            for (Field field : Class.forName(ABSTRACT_METHOD_CLASS_NAME).getDeclaredFields()) {
-                field.setAccessible(true);
+            for (Field field : getAccessibleFields(ABSTRACT_METHOD_CLASS_NAME)) {
                 field.set(m, field.get(associatedMethod));
             }
-
-            Field artMethodField = Class.forName(ABSTRACT_METHOD_CLASS_NAME).getDeclaredField(FIELD_ART_METHOD);
-            artMethodField.setAccessible(true);
-            artMethodField.set(m, artMethod.artMethod);
+            getAccessibleField(ABSTRACT_METHOD_CLASS_NAME, FIELD_ART_METHOD).set(m, artMethod.artMethod);
 
             return m;
         } catch (Throwable t) {
@@ -143,14 +87,10 @@ public class M extends VersionHelper {
 
             Constructor<?> c = constructorConstructor.newInstance();
             c.setAccessible(true);
-            for (Field field : Class.forName(ABSTRACT_METHOD_CLASS_NAME).getDeclaredFields()) {
-                field.setAccessible(true);
+            for (Field field : getAccessibleFields(ABSTRACT_METHOD_CLASS_NAME)) {
                 field.set(c, field.get(associatedMethod));
             }
-
-            Field artMethodField = Class.forName(ABSTRACT_METHOD_CLASS_NAME).getDeclaredField(FIELD_ART_METHOD);
-            artMethodField.setAccessible(true);
-            artMethodField.set(c, newArtMethod.artMethod);
+            getAccessibleField(ABSTRACT_METHOD_CLASS_NAME, FIELD_ART_METHOD).set(c, newArtMethod.artMethod);
 
             return c;
         } catch (Throwable t) {
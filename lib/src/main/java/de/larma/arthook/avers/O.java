@@ -20,19 +20,16 @@ import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import de.larma.arthook.ArtMethod;
 import de.larma.arthook.Memory;
 import de.larma.arthook.Native;
+import de.larma.arthook.Slab;
 
 import static de.larma.arthook.ArtMethod.ABSTRACT_METHOD_CLASS_NAME;
 import static de.larma.arthook.ArtMethod.EXECUTABLE_CLASS_NAME;
-import static de.larma.arthook.ArtMethod.FIELD_ACCESS_FLAGS;
 import static de.larma.arthook.ArtMethod.FIELD_ART_METHOD;
-import static de.larma.arthook.ArtMethod.FIELD_ENTRY_POINT_FROM_JNI;
-import static de.larma.arthook.ArtMethod.FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE;
+import static de.larma.arthook.avers.ArtMethodLayout.UNKNOWN;
 
 public class O extends VersionHelper{
     private static final int FIELD_ENTRY_POINT_FROM_JNI_NATIVE_INDEX = 1;
@@ -45,65 +42,21 @@ public class O extends VersionHelper{
     private static final int O_NATIVE_FIELDS = Native.is64Bit() ? O_NATIVE_FIELDS_64 : O_NATIVE_FIELDS_32;
     private static final int O_OBJECT_SIZE = O_MIRROR_FIELDS + O_NATIVE_FIELDS;
 
-    @Override
-    public Object createArtMethod() {
-        return Memory.map(O_OBJECT_SIZE);
-    }
+    private static final ArtMethodLayout LAYOUT = ArtMethodLayout.ofNativeFields(4 * FIELD_ACCESS_FLAGS_MIRROR_INDEX, O_MIRROR_FIELDS,
+            UNKNOWN,
+            FIELD_ENTRY_POINT_FROM_JNI_NATIVE_INDEX,
+            FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE_NATIVE_INDEX);
 
-    @Override
-    public Object getArtMethodFieldNative(ArtMethod artMethod, String name) {
-        switch (name) {
-            case FIELD_ENTRY_POINT_FROM_JNI:
-                return getNative(artMethod, FIELD_ENTRY_POINT_FROM_JNI_NATIVE_INDEX, false);
-            case FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE:
-                return getNative(artMethod, FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE_NATIVE_INDEX, false);
-        }
-        return super.getArtMethodFieldNative(artMethod, name);
-    }
-
-    private long getNative(ArtMethod artMethod, int num, boolean mirror) {
-        long objectAddress = (long) artMethod.artMethod;
-        int intSize = Native.is64Bit() && !mirror ? 8 : 4;
-        byte[] bytes = Memory.get(objectAddress + (mirror ? 0 : O_MIRROR_FIELDS) + intSize * num, intSize);
-        if (intSize == 8) {
-            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
-        } else {
-            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
-        }
-    }
+    private static final Slab ART_METHOD_SLAB = new Slab(O_OBJECT_SIZE, ART_METHOD_ALIGNMENT);
 
     @Override
-    public boolean setArtMethodFieldNative(ArtMethod artMethod, String name, Object value) {
-        switch (name) {
-            case FIELD_ENTRY_POINT_FROM_JNI:
-                setNative(artMethod, FIELD_ENTRY_POINT_FROM_JNI_NATIVE_INDEX, (Long) value);
-                return true;
-            case FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE:
-                setNative(artMethod, FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE_NATIVE_INDEX, (Long) value);
-                return true;
-            case FIELD_ACCESS_FLAGS:
-                setMirror(artMethod, FIELD_ACCESS_FLAGS_MIRROR_INDEX, (int) value);
-                return true;
-        }
-        return super.setArtMethodFieldNative(artMethod, name, value);
-    }
-
-    private void setNative(ArtMethod artMethod, int num, long value) {
-        long objectAddress = (long) artMethod.artMethod;
-        int intSize = Native.is64Bit() ? 8 : 4;
-        byte[] bytes;
-        if (Native.is64Bit()) {
-            bytes = ByteBuffer.allocate(intSize).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
-        } else {
-            bytes = ByteBuffer.allocate(intSize).order(ByteOrder.LITTLE_ENDIAN).putInt((int) value).array();
-        }
-        Memory.put(bytes, objectAddress + O_MIRROR_FIELDS + intSize * num);
+    public Object createArtMethod() {
+        return ART_METHOD_SLAB.allocate();
     }
 
-    private void setMirror(ArtMethod artMethod, int num, int value) {
-        long objectAddress = (long) artMethod.artMethod;
-        byte[] bytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
-        Memory.put(bytes, objectAddress + 4 * num);
+    @Override
+    public ArtMethodLayout getLayout() {
+        return LAYOUT;
     }
 
     @Override
@@ -112,20 +65,15 @@ public class O extends VersionHelper{
             Constructor<Method> methodConstructor = Method.class.getDeclaredConstructor();
             // we can't use methodConstructor.setAccessible(true); because Google does not like it
             // but we have some internal field for it \o/
-            Field override = AccessibleObject.class.getDeclaredField("override");
-            override.setAccessible(true);
+            Field override = getAccessibleField(AccessibleObject.class.getName(), "override");
             override.set(methodConstructor, true);
 
             Method m = methodConstructor.newInstance();
             m.setAccessible(true);
-            for (Field field : Class.forName(EXECUTABLE_CLASS_NAME).getDeclaredFields()) {
-                field.setAccessible(true);
+            for (Field field : getAccessibleFields(EXECUTABLE_CLASS_NAME)) {
                 field.set(m, field.get(associatedMethod));
             }
-
-            Field artMethodField = Class.forName(EXECUTABLE_CLASS_NAME).getDeclaredField(FIELD_ART_METHOD);
-            artMethodField.setAccessible(true);
-            artMethodField.set(m, newArtMethod.artMethod);
+            getAccessibleField(EXECUTABLE_CLASS_NAME, FIELD_ART_METHOD).set(m, newArtMethod.artMethod);
 
             return m;
         } catch (Throwable t) {
@@ -139,20 +87,15 @@ public class O extends VersionHelper{
             Constructor<Constructor> constructorConstructor = Constructor.class.getDeclaredConstructor();
             // we can't use constructorConstructor.setAccessible(true); because Google does not like it
             // but we have some internal field for it \o/
-            Field override = AccessibleObject.class.getDeclaredField("override");
-            override.setAccessible(true);
+            Field override = getAccessibleField(AccessibleObject.class.getName(), "override");
             override.set(constructorConstructor, true);
 
             Constructor<?> c = constructorConstructor.newInstance();
             c.setAccessible(true);
-            for (Field field : Class.forName(EXECUTABLE_CLASS_NAME).getDeclaredFields()) {
-                field.setAccessible(true);
+            for (Field field : getAccessibleFields(EXECUTABLE_CLASS_NAME)) {
                 field.set(c, field.get(associatedMethod));
             }
-
-            Field artMethodField = Class.forName(EXECUTABLE_CLASS_NAME).getDeclaredField(FIELD_ART_METHOD);
-            artMethodField.setAccessible(true);
-            artMethodField.set(c, newArtMethod.artMethod);
+            getAccessibleField(EXECUTABLE_CLASS_NAME, FIELD_ART_METHOD).set(c, newArtMethod.artMethod);
 
             return c;
         } catch (Throwable t) {
@@ -17,9 +17,13 @@
 package de.larma.arthook.avers;
 
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.larma.arthook.ArtMethod;
+import de.larma.arthook.Native;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.LOLLIPOP;
@@ -42,22 +46,109 @@ public abstract class VersionHelper {
 
     private static final boolean FALSE = false;
 
-    public static VersionHelper CURRENT = FALSE ? null
-            : VERSION_LMR0 ? new LMR0()
-            : VERSION_LMR1 ? new LMR1()
-            : VERSION_M ? new M()
-            : VERSION_N ? new N()
-            : VERSION_O ? new O()
-            : VERSION_FUTURE ? new O()
-            : null;
+    protected static final int POINTER_SIZE = Native.is64Bit() ? 8 : 4;
+
+    /**
+     * Native ArtMethods are aligned to the size of a pointer.
+     */
+    protected static final int ART_METHOD_ALIGNMENT = POINTER_SIZE;
+
+    private static final Map<String, Field[]> accessibleFields = new ConcurrentHashMap<>();
+
+    /**
+     * Must stay the last static field, as the helper is created when it is initialized and reads
+     * the fields above.
+     *
+     * @deprecated Use {@link #current()}, assigning this field has no effect
+     */
+    @Deprecated
+    public static VersionHelper CURRENT = current();
+
+    /**
+     * @return The helper for the running Android version, or null if the version is not supported
+     */
+    public static VersionHelper current() {
+        return Holder.CURRENT;
+    }
+
+    /**
+     * The helpers read the static fields of this class while being created, so they must not be
+     * created before these are initialized. The holder is only initialized on first use, which is
+     * the initialization of {@link #CURRENT} at the latest.
+     */
+    private static final class Holder {
+        static final VersionHelper CURRENT = FALSE ? null
+                : VERSION_LMR0 ? new LMR0()
+                : VERSION_LMR1 ? new LMR1()
+                : VERSION_M ? new M()
+                : VERSION_N ? new N()
+                : VERSION_O ? new O()
+                : VERSION_FUTURE ? new O()
+                : null;
+    }
 
     public abstract Object createArtMethod();
 
+    /**
+     * @return The layout of native ArtMethods on this system, or null if all fields have to be
+     * accessed using reflection
+     */
+    public ArtMethodLayout getLayout() {
+        return null;
+    }
+
+    /**
+     * @return The value of the given field of the native ArtMethod, or null if its offset is not
+     * known
+     * @deprecated Use the accessors of {@link ArtMethod} or {@link #getLayout()}
+     */
+    @Deprecated
     public Object getArtMethodFieldNative(ArtMethod artMethod, String name) {
+        ArtMethodLayout layout = getLayout();
+        if (layout == null) {
+            return null;
+        }
+        switch (name) {
+            case ArtMethod.FIELD_ACCESS_FLAGS:
+                return layout.hasAccessFlags() ? (Object) layout.accessFlags(artMethod.getAddress()) : null;
+            case ArtMethod.FIELD_ENTRY_POINT_FROM_INTERPRETER:
+                return layout.hasEntryPointFromInterpreter() ? (Object) layout.entryPointFromInterpreter(artMethod.getAddress()) : null;
+            case ArtMethod.FIELD_ENTRY_POINT_FROM_JNI:
+                return layout.hasEntryPointFromJni() ? (Object) layout.entryPointFromJni(artMethod.getAddress()) : null;
+            case ArtMethod.FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE:
+                return layout.hasEntryPointQuick() ? (Object) layout.entryPointQuick(artMethod.getAddress()) : null;
+        }
         return null;
     }
 
+    /**
+     * @return false if the offset of the given field of the native ArtMethod is not known
+     * @deprecated Use the accessors of {@link ArtMethod} or {@link #getLayout()}
+     */
+    @Deprecated
     public boolean setArtMethodFieldNative(ArtMethod artMethod, String name, Object value) {
+        ArtMethodLayout layout = getLayout();
+        if (layout == null) {
+            return false;
+        }
+        switch (name) {
+            case ArtMethod.FIELD_ACCESS_FLAGS:
+                if (!layout.hasAccessFlags()) return false;
+                layout.accessFlags(artMethod.getAddress(), (Integer) value);
+                return true;
+            case ArtMethod.FIELD_ENTRY_POINT_FROM_INTERPRETER:
+                if (!layout.hasEntryPointFromInterpreter()) return false;
+                layout.entryPointFromInterpreter(artMethod.getAddress(), (Long) value);
+                return true;
+            case ArtMethod.FIELD_ENTRY_POINT_FROM_JNI:
+                if (!layout.hasEntryPointFromJni()) return false;
+                layout.entryPointFromJni(artMethod.getAddress(), (Long) value);
+                return true;
+            case ArtMethod.FIELD_ENTRY_POINT_FROM_QUICK_COMPILED_CODE:
+                if (!layout.hasEntryPointQuick()) return false;
+                layout.entryPointQuick(artMethod.getAddress(), (Long) value);
+                return true;
+        }
         return false;
     }
 
@@ -75,4 +166,30 @@ public abstract class VersionHelper {
     public abstract Method newMethod(Object originalMethod, ArtMethod newArtMethod);
 
     public abstract void copy(ArtMethod src, ArtMethod dst);
+
+    /**
+     * @return The declared fields of the given class, already made accessible. They are only
+     * looked up once per class.
+     */
+    protected static Field[] getAccessibleFields(String className) throws ClassNotFoundException {
+        Field[] fields = accessibleFields.get(className);
+        if (fields == null) {
+            fields = Class.forName(className).getDeclaredFields();
+            for (Field field : fields) {
+                field.setAccessible(true);
+            }
+            accessibleFields.put(className, fields);
+        }
+        return fields;
+    }
+
+    protected static Field getAccessibleField(String className, String name)
+            throws ClassNotFoundException, NoSuchFieldException {
+        for (Field field : getAccessibleFields(className)) {
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
 }
@@ -45,30 +45,121 @@ public class Arm32 extends InstructionHelper {
 
     @Override
     public int sizeOfTargetJump() {
-        return 32;
+        return 88;
     }
 
     @Override
-    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress) {
+    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
         final byte[] instructions = new byte[]{
-                0x14, (byte) 0xc0, (byte) 0x9f, (byte) 0xe5,    // ldr ip, [pc, #20] (srcAddress)
+                0x44, (byte) 0xc0, (byte) 0x9f, (byte) 0xe5,    // ldr ip, [pc, #68] (srcAddress)
                 0x0c, 0x00, 0x50, (byte) 0xe1,                  // cmp r0, ip
-                0x04, 0x00, 0x00, 0x1a,                         // bne next
+                0x12, 0x00, 0x00, 0x1a,                         // bne next
+                0x3c, (byte) 0xc0, (byte) 0x9f, (byte) 0xe5,    // ldr ip, [pc, #60] (enabled)
+                0x00, 0x00, 0x5c, (byte) 0xe3,                  // cmp ip, #0
+                0x0f, 0x00, 0x00, 0x0a,                         // beq next
+                0x70, 0x00, 0x2d, (byte) 0xe9,                  // push {r4-r6}
+                0x30, (byte) 0xc0, (byte) 0x9f, (byte) 0xe5,    // ldr ip, [pc, #48] (counterAddress)
+                (byte) 0x9f, 0x4f, (byte) 0xbc, (byte) 0xe1,    // increment: ldrexd r4, r5, [ip]
+                0x01, 0x40, (byte) 0x94, (byte) 0xe2,           // adds r4, r4, #1
+                0x00, 0x50, (byte) 0xa5, (byte) 0xe2,           // adc r5, r5, #0
+                (byte) 0x94, 0x6f, (byte) 0xac, (byte) 0xe1,    // strexd r6, r4, r5, [ip]
+                0x00, 0x00, 0x56, (byte) 0xe3,                  // cmp r6, #0
+                (byte) 0xf9, (byte) 0xff, (byte) 0xff, 0x1a,    // bne increment
+                0x70, 0x00, (byte) 0xbd, (byte) 0xe8,           // pop {r4-r6}
                 0x00, 0x00, (byte) 0x9f, (byte) 0xe5,           // ldr r0, [pc, #0] (targetAddress)
-                0x04, (byte) 0xf0, (byte) 0x9f, (byte) 0xe5,    // ldr pc, [pc, #4] (entryPointFromQuickCompiledCode)
+                0x00, (byte) 0xf0, (byte) 0x9f, (byte) 0xe5,    // ldr pc, [pc, #0] (entryPointFromQuickCompiledCode)
                 0, 0, 0, 0,                                     // targetAddress
                 0, 0, 0, 0,                                     // entryPointFromQuickCompiledCode
                 0, 0, 0, 0,                                     // srcAddress
+                1, 0, 0, 0,                                     // enabled
+                0, 0, 0, 0,                                     // counterAddress
         };
         writeInt((int) targetAddress, ByteOrder.LITTLE_ENDIAN, instructions,
-                instructions.length - 12);
+                instructions.length - 20);
         writeInt((int) entryPointFromQuickCompiledCode,
-                ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 8);
+                ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 16);
         writeInt((int) srcAddress, ByteOrder.LITTLE_ENDIAN, instructions,
+                instructions.length - 12);
+        writeInt((int) counterAddress, ByteOrder.LITTLE_ENDIAN, instructions,
                 instructions.length - 4);
         return instructions;
     }
 
+    @Override
+    public int offsetOfTargetJumpEnabled() {
+        return 80;
+    }
+
+    @Override
+    public int sizeOfTableDispatch() {
+        return 128;
+    }
+
+    @Override
+    public byte[] createTableDispatch(int count) {
+        final byte[] instructions = new byte[]{
+                (byte) 0xf0, 0x00, 0x2d, (byte) 0xe9,           // push {r4-r7}
+                (byte) 0x84, 0x40, (byte) 0x8f, (byte) 0xe2,    // adr r4, _table
+                0x00, 0x50, (byte) 0xa0, (byte) 0xe3,           // mov r5, #0
+                0x64, 0x60, (byte) 0x9f, (byte) 0xe5,           // ldr r6, _count
+                0x06, 0x00, 0x55, (byte) 0xe1,                  // _loop: cmp r5, r6
+                0x18, 0x00, 0x00, 0x2a,                         // bhs _miss
+                0x06, 0x70, (byte) 0x85, (byte) 0xe0,           // add r7, r5, r6
+                (byte) 0xa7, 0x70, (byte) 0xa0, (byte) 0xe1,    // lsr r7, r7, #1
+                (byte) 0x87, (byte) 0xc2, (byte) 0x84, (byte) 0xe0, // add ip, r4, r7, lsl #5
+                0x00, (byte) 0xc0, (byte) 0x9c, (byte) 0xe5,    // ldr ip, [ip]
+                0x0c, 0x00, 0x50, (byte) 0xe1,                  // cmp r0, ip
+                0x02, 0x00, 0x00, 0x0a,                         // beq _found
+                0x07, 0x60, (byte) 0xa0, 0x31,                  // movlo r6, r7
+                0x01, 0x50, (byte) 0x87, 0x22,                  // addhs r5, r7, #1
+                (byte) 0xf4, (byte) 0xff, (byte) 0xff, (byte) 0xea, // b _loop
+                (byte) 0x87, (byte) 0xc2, (byte) 0x84, (byte) 0xe0, // _found: add ip, r4, r7, lsl #5
+                0x0c, 0x50, (byte) 0x9c, (byte) 0xe5,           // ldr r5, [ip, #12]
+                0x00, 0x00, 0x55, (byte) 0xe3,                  // cmp r5, #0
+                0x0b, 0x00, 0x00, 0x0a,                         // beq _miss
+                0x10, 0x50, (byte) 0x9c, (byte) 0xe5,           // ldr r5, [ip, #16]
+                (byte) 0x9f, 0x6f, (byte) 0xb5, (byte) 0xe1,    // _increment: ldrexd r6, r7, [r5]
+                0x01, 0x60, (byte) 0x96, (byte) 0xe2,           // adds r6, r6, #1
+                0x00, 0x70, (byte) 0xa7, (byte) 0xe2,           // adc r7, r7, #0
+                (byte) 0x96, 0x4f, (byte) 0xa5, (byte) 0xe1,    // strexd r4, r6, r7, [r5]
+                0x00, 0x00, 0x54, (byte) 0xe3,                  // cmp r4, #0
+                (byte) 0xf9, (byte) 0xff, (byte) 0xff, 0x1a,    // bne _increment
+                0x04, 0x00, (byte) 0x9c, (byte) 0xe5,           // ldr r0, [ip, #4]
+                0x08, (byte) 0xc0, (byte) 0x9c, (byte) 0xe5,    // ldr ip, [ip, #8]
+                (byte) 0xf0, 0x00, (byte) 0xbd, (byte) 0xe8,    // pop {r4-r7}
+                0x1c, (byte) 0xff, 0x2f, (byte) 0xe1,           // bx ip
+                0, 0, 0, 0,                                     // _count
+                (byte) 0xf0, 0x00, (byte) 0xbd, (byte) 0xe8,    // _miss: pop {r4-r7}
+                                                                // CallOriginal
+                                                                // _table: entries
+        };
+        writeInt(count, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 8);
+        return instructions;
+    }
+
+    @Override
+    public int sizeOfTableEntry() {
+        return 32;
+    }
+
+    @Override
+    public byte[] createTableEntry(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
+        final byte[] entry = new byte[sizeOfTableEntry()];
+        writeInt((int) srcAddress, ByteOrder.LITTLE_ENDIAN, entry, 0);
+        writeInt((int) targetAddress, ByteOrder.LITTLE_ENDIAN, entry, 4);
+        writeInt((int) entryPointFromQuickCompiledCode, ByteOrder.LITTLE_ENDIAN, entry, 8);
+        writeInt(1, ByteOrder.LITTLE_ENDIAN, entry, offsetOfTableEntryEnabled());
+        writeInt((int) counterAddress, ByteOrder.LITTLE_ENDIAN, entry, 16);
+        return entry;
+    }
+
+    @Override
+    public int offsetOfTableEntryEnabled() {
+        return 12;
+    }
+
     @Override
     public int sizeOfArtJump() {
         return 16;
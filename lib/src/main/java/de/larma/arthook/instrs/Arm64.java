@@ -22,6 +22,19 @@ import de.larma.arthook.HookPage;
 
 @SuppressWarnings("MagicNumber")
 public class Arm64 extends InstructionHelper {
+    private final boolean atomics;
+
+    public Arm64() {
+        this(false);
+    }
+
+    /**
+     * @param atomics Whether the ARMv8.1 atomic instructions can be used to count calls,
+     *                instead of a load/store exclusive loop
+     */
+    public Arm64(boolean atomics) {
+        this.atomics = atomics;
+    }
 
     @Override
     public int sizeOfDirectJump() {
@@ -42,31 +55,129 @@ public class Arm64 extends InstructionHelper {
 
     @Override
     public int sizeOfTargetJump() {
-        return 48;
+        return 96;
     }
 
     @Override
-    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress) {
+    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
         final byte[] instructions = new byte[] {
-                0x49, 0x01, 0x00, 0x58,        // ldr x9, _src_method_pos_x
+                0x49, 0x02, 0x00, 0x58,        // ldr x9, _src_method_pos_x
                 0x1F, 0x00, 0x09, (byte) 0xEB, // cmp x0, x9
-                0x41, 0x01, 0x00, 0x54,        // bne _branch_1
-                0x60, 0x00, 0x00, 0x58,        // ldr x0, _target_method_pos_x
-                (byte) 0x89, 0x00, 0x00, 0x58, // ldr x9, _target_method_pc
+                (byte) 0xC1, 0x02, 0x00, 0x54, // bne _branch_1
+                0x69, 0x02, 0x00, 0x18,        // ldr w9, _enabled
+                (byte) 0x89, 0x02, 0x00, 0x34, // cbz w9, _branch_1
+                (byte) 0xE9, 0x01, 0x00, 0x58, // ldr x9, _counter
+                0x2A, 0x7D, 0x5F, (byte) 0xC8, // _increment: ldxr x10, [x9]
+                0x4A, 0x05, 0x00, (byte) 0x91, // add x10, x10, #1
+                0x2A, 0x7D, 0x0B, (byte) 0xC8, // stxr w11, x10, [x9]
+                (byte) 0xAB, (byte) 0xFF, (byte) 0xFF, 0x35, // cbnz w11, _increment
+                (byte) 0x80, 0x00, 0x00, 0x58, // ldr x0, _target_method_pos_x
+                (byte) 0xA9, 0x00, 0x00, 0x58, // ldr x9, _target_method_pc
                 0x20, 0x01, 0x1F, (byte) 0xD6, // br x9
+                0x00, 0x00, 0x00, 0x00,        // padding
                 0x00, 0x00, 0x00, 0x00,        // target_method_pos_x
                 0x00, 0x00, 0x00, 0x00,        // target_method_pos_x
                 0x00, 0x00, 0x00, 0x00,        // target_method_pc
                 0x00, 0x00, 0x00, 0x00,        // target_method_pc
                 0x00, 0x00, 0x00, 0x00,        // src_method_pos_x
-                0x00, 0x00, 0x00, 0x00         // src_method_pos_x
+                0x00, 0x00, 0x00, 0x00,        // src_method_pos_x
+                0x00, 0x00, 0x00, 0x00,        // counter
+                0x00, 0x00, 0x00, 0x00,        // counter
+                0x01, 0x00, 0x00, 0x00,        // enabled
+                0x00, 0x00, 0x00, 0x00         // padding
+        };
+        if (atomics) {
+            System.arraycopy(new byte[] {
+                    0x2A, 0x00, (byte) 0x80, (byte) 0xD2,   // mov x10, #1
+                    0x3F, 0x01, 0x2A, (byte) 0xF8,          // stadd x10, [x9]
+                    0x1F, 0x20, 0x03, (byte) 0xD5,          // nop
+                    0x1F, 0x20, 0x03, (byte) 0xD5           // nop
+            }, 0, instructions, 24, 16);
+        }
+        writeLong(targetAddress, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 40);
+        writeLong(entryPointFromQuickCompiledCode, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 32);
+        writeLong(srcAddress, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 24);
+        writeLong(counterAddress, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 16);
+        return instructions;
+    }
+
+    @Override
+    public int offsetOfTargetJumpEnabled() {
+        return 88;
+    }
+
+    @Override
+    public int sizeOfTableDispatch() {
+        return 104;
+    }
+
+    @Override
+    public byte[] createTableDispatch(int count) {
+        final byte[] instructions = new byte[] {
+                0x4A, 0x04, 0x00, 0x10,                     // adr x10, _table
+                0x0B, 0x00, (byte) 0x80, (byte) 0xD2,       // mov x11, #0
+                (byte) 0xEC, 0x02, 0x00, 0x18,              // ldr w12, _count
+                0x7F, 0x01, 0x0C, (byte) 0xEB,              // _loop: cmp x11, x12
+                (byte) 0xC2, 0x02, 0x00, 0x54,              // b.hs _miss
+                0x6D, 0x01, 0x0C, (byte) 0x8B,              // add x13, x11, x12
+                (byte) 0xAD, (byte) 0xFD, 0x41, (byte) 0xD3, // lsr x13, x13, #1
+                0x4E, 0x19, 0x0D, (byte) 0x8B,              // add x14, x10, x13, lsl #6
+                (byte) 0xCF, 0x01, 0x40, (byte) 0xF9,       // ldr x15, [x14]
+                0x1F, 0x00, 0x0F, (byte) 0xEB,              // cmp x0, x15
+                (byte) 0xC0, 0x00, 0x00, 0x54,              // b.eq _found
+                0x63, 0x00, 0x00, 0x54,                     // b.lo _less
+                (byte) 0xAB, 0x05, 0x00, (byte) 0x91,       // add x11, x13, #1
+                (byte) 0xF6, (byte) 0xFF, (byte) 0xFF, 0x17, // b _loop
+                (byte) 0xEC, 0x03, 0x0D, (byte) 0xAA,       // _less: mov x12, x13
+                (byte) 0xF4, (byte) 0xFF, (byte) 0xFF, 0x17, // b _loop
+                (byte) 0xCF, 0x19, 0x40, (byte) 0xB9,       // _found: ldr w15, [x14, #24]
+                0x2F, 0x01, 0x00, 0x34,                     // cbz w15, _miss
+                (byte) 0xC9, 0x11, 0x40, (byte) 0xF9,       // ldr x9, [x14, #32]
+                0x2F, 0x7D, 0x5F, (byte) 0xC8,              // _increment: ldxr x15, [x9]
+                (byte) 0xEF, 0x05, 0x00, (byte) 0x91,       // add x15, x15, #1
+                0x2F, 0x7D, 0x0C, (byte) 0xC8,              // stxr w12, x15, [x9]
+                (byte) 0xAC, (byte) 0xFF, (byte) 0xFF, 0x35, // cbnz w12, _increment
+                (byte) 0xC0, (byte) 0xA5, 0x40, (byte) 0xA9, // ldp x0, x9, [x14, #8]
+                0x20, 0x01, 0x1F, (byte) 0xD6,              // br x9
+                0x00, 0x00, 0x00, 0x00                      // _count
+                                                            // _miss: CallOriginal
+                                                            // _table: entries
         };
-        writeLong(targetAddress, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 24);
-        writeLong(entryPointFromQuickCompiledCode, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 16);
-        writeLong(srcAddress, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 8);
+        if (atomics) {
+            System.arraycopy(new byte[] {
+                    0x2F, 0x00, (byte) 0x80, (byte) 0xD2,   // mov x15, #1
+                    0x3F, 0x01, 0x2F, (byte) 0xF8,          // stadd x15, [x9]
+                    0x1F, 0x20, 0x03, (byte) 0xD5,          // nop
+                    0x1F, 0x20, 0x03, (byte) 0xD5           // nop
+            }, 0, instructions, 76, 16);
+        }
+        writeInt(count, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 4);
         return instructions;
     }
 
+    @Override
+    public int sizeOfTableEntry() {
+        return 64;
+    }
+
+    @Override
+    public byte[] createTableEntry(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
+        final byte[] entry = new byte[sizeOfTableEntry()];
+        writeLong(srcAddress, ByteOrder.LITTLE_ENDIAN, entry, 0);
+        writeLong(targetAddress, ByteOrder.LITTLE_ENDIAN, entry, 8);
+        writeLong(entryPointFromQuickCompiledCode, ByteOrder.LITTLE_ENDIAN, entry, 16);
+        writeInt(1, ByteOrder.LITTLE_ENDIAN, entry, offsetOfTableEntryEnabled());
+        writeLong(counterAddress, ByteOrder.LITTLE_ENDIAN, entry, 32);
+        return entry;
+    }
+
+    @Override
+    public int offsetOfTableEntryEnabled() {
+        return 24;
+    }
+
     @Override
     public long toPC(long code) {
         return code;
@@ -29,7 +29,7 @@ public abstract class InstructionHelper {
 
     protected InstructionHelper() {
         sizeOfDirectJump = createDirectJump(0).length;
-        sizeOfTargetJump = createTargetJump(0, 0, 0).length;
+        sizeOfTargetJump = createTargetJump(0, 0, 0, 0).length;
     }
 
     /**
@@ -83,10 +83,91 @@ public abstract class InstructionHelper {
         return sizeOfTargetJump;
     }
 
-    public abstract byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress);
+    /**
+     * Create assembly that jumps to the target if the ArtMethod in the first argument register is
+     * srcAddress and the enabled word of the TargetJump is not 0, and continues behind the
+     * TargetJump otherwise. The enabled word is initially set.
+     * <p/>
+     * Before jumping, the 64 bit counter at counterAddress (8 byte aligned) is atomically
+     * incremented.
+     */
+    public abstract byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                            long counterAddress);
 
     public byte[] createTargetJump(HookPage.Hook hook) {
-        return createTargetJump(hook.target.getAddress(), hook.target.getEntryPointFromQuickCompiledCode(), hook.src.getAddress());
+        byte[] targetJump = createTargetJump(hook.target.getAddress(), hook.target.getEntryPointFromQuickCompiledCode(),
+                hook.src.getAddress(), hook.getCounterAddress());
+        if (!hook.isEnabled()) {
+            writeInt(0, ByteOrder.LITTLE_ENDIAN, targetJump, offsetOfTargetJumpEnabled());
+        }
+        return targetJump;
+    }
+
+    /**
+     * Offset of the 32 bit enabled word within a TargetJump, or -1 if not supported.
+     * <p/>
+     * The word is aligned, so it can be changed with a single store while the code is executed.
+     */
+    public int offsetOfTargetJumpEnabled() {
+        return -1;
+    }
+
+    /**
+     * Whether this instruction set can dispatch using {@link #createTableDispatch(int)}
+     */
+    public boolean supportsTableDispatch() {
+        return sizeOfTableDispatch() > 0;
+    }
+
+    /**
+     * Length of a TableDispatch as created by {@link #createTableDispatch(int)}, or 0 if not
+     * supported.
+     */
+    public int sizeOfTableDispatch() {
+        return 0;
+    }
+
+    /**
+     * Create assembly that binary searches the ArtMethod in the first argument register within a
+     * table of <code>count</code> entries (as created by {@link #createTableEntry(HookPage.Hook)},
+     * sorted by unsigned srcAddress) and jumps to the target of the matching entry, unless the
+     * enabled word of the entry is 0. The counter of the entry is incremented like in a TargetJump.
+     * <p/>
+     * The CallOriginal is expected directly behind this code and is executed if no entry matches,
+     * the table is expected directly behind the CallOriginal.
+     */
+    public byte[] createTableDispatch(int count) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Length of a table entry as created by {@link #createTableEntry(HookPage.Hook)}.
+     * <p/>
+     * This is always a power of 2, so the dispatch code can index the table with a single shift
+     */
+    public int sizeOfTableEntry() {
+        return 0;
+    }
+
+    public byte[] createTableEntry(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] createTableEntry(HookPage.Hook hook) {
+        byte[] entry = createTableEntry(hook.target.getAddress(), hook.target.getEntryPointFromQuickCompiledCode(),
+                hook.src.getAddress(), hook.getCounterAddress());
+        if (!hook.isEnabled()) {
+            writeInt(0, ByteOrder.LITTLE_ENDIAN, entry, offsetOfTableEntryEnabled());
+        }
+        return entry;
+    }
+
+    /**
+     * Offset of the 32 bit enabled word within a table entry, see {@link #offsetOfTargetJumpEnabled()}.
+     */
+    public int offsetOfTableEntryEnabled() {
+        return -1;
     }
 
     @Deprecated
@@ -41,30 +41,123 @@ public class Thumb2 extends InstructionHelper {
 
     @Override
     public int sizeOfTargetJump() {
-        return 28;
+        return 76;
     }
 
     @Override
-    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress) {
+    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
         final byte[] instructions = new byte[] {
-                (byte) 0xdf, (byte) 0xf8, 0x14, (byte) 0xc0,    // ldr ip, [pc, #20]
+                (byte) 0xdf, (byte) 0xf8, 0x3c, (byte) 0xc0,    // ldr ip, [pc, #60]
                 (byte) 0x60, 0x45,                              // cmp r0, ip
-                0x40, (byte) 0xf0, 0x09, (byte) 0x80,           // bne next
+                0x40, (byte) 0xf0, 0x21, (byte) 0x80,           // bne next
+                (byte) 0xdf, (byte) 0xf8, 0x38, (byte) 0xc0,    // ldr ip, [pc, #56]
+                (byte) 0xbc, (byte) 0xf1, 0x00, 0x0f,           // cmp ip, #0
+                0x00, (byte) 0xf0, 0x1b, (byte) 0x80,           // beq next
+                0x70, (byte) 0xb4,                              // push {r4-r6}
+                (byte) 0xdf, (byte) 0xf8, 0x2c, (byte) 0xc0,    // ldr ip, [pc, #44]
+                (byte) 0xdc, (byte) 0xe8, 0x7f, 0x45,           // increment: ldrexd r4, r5, [ip]
+                0x01, 0x34,                                     // adds r4, #1
+                0x45, (byte) 0xf1, 0x00, 0x05,                  // adc r5, r5, #0
+                (byte) 0xcc, (byte) 0xe8, 0x76, 0x45,           // strexd r6, r4, r5, [ip]
+                0x00, 0x2e,                                     // cmp r6, #0
+                (byte) 0xf6, (byte) 0xd1,                       // bne increment
+                0x70, (byte) 0xbc,                              // pop {r4-r6}
                 0x01, 0x48,                                     // ldr r0, [pc, #4]
-                (byte) 0xdf, (byte) 0xf8, 0x04, (byte) 0xf0,    // ldr pc, [pc, #4]
+                (byte) 0xdf, (byte) 0xf8, 0x08, (byte) 0xf0,    // ldr pc, [pc, #8]
+                0x00, (byte) 0xbf,                              // nop
                 0x0, 0x0, 0x0, 0x0,                             // targetAddress
                 0x0, 0x0, 0x0, 0x0,                             // entryPointFromQuickCompiledCode
                 0x0, 0x0, 0x0, 0x0,                             // srcAddress
+                0x1, 0x0, 0x0, 0x0,                             // enabled
+                0x0, 0x0, 0x0, 0x0,                             // counterAddress
         };
         writeInt((int) targetAddress, ByteOrder.LITTLE_ENDIAN, instructions,
-                instructions.length - 12);
+                instructions.length - 20);
         writeInt((int) entryPointFromQuickCompiledCode,
-                ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 8);
+                ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 16);
         writeInt((int) srcAddress, ByteOrder.LITTLE_ENDIAN, instructions,
+                instructions.length - 12);
+        writeInt((int) counterAddress, ByteOrder.LITTLE_ENDIAN, instructions,
                 instructions.length - 4);
         return instructions;
     }
 
+    @Override
+    public int offsetOfTargetJumpEnabled() {
+        return 68;
+    }
+
+    @Override
+    public int sizeOfTableDispatch() {
+        return 88;
+    }
+
+    @Override
+    public byte[] createTableDispatch(int count) {
+        final byte[] instructions = new byte[] {
+                (byte) 0xf0, (byte) 0xb4,                       // push {r4-r7}
+                0x19, (byte) 0xa4,                              // adr r4, _table
+                0x00, 0x25,                                     // movs r5, #0
+                0x12, 0x4e,                                     // ldr r6, _count
+                (byte) 0xb5, 0x42,                              // _loop: cmp r5, r6
+                0x23, (byte) 0xd2,                              // bhs _miss
+                (byte) 0xaf, 0x19,                              // adds r7, r5, r6
+                0x7f, 0x08,                                     // lsrs r7, r7, #1
+                0x04, (byte) 0xeb, 0x47, 0x1c,                  // add.w ip, r4, r7, lsl #5
+                (byte) 0xdc, (byte) 0xf8, 0x00, (byte) 0xc0,    // ldr.w ip, [ip]
+                0x60, 0x45,                                     // cmp r0, ip
+                0x03, (byte) 0xd0,                              // beq _found
+                0x34, (byte) 0xbf,                              // ite lo
+                0x3e, 0x46,                                     // movlo r6, r7
+                0x7d, 0x1c,                                     // addhs r5, r7, #1
+                (byte) 0xf1, (byte) 0xe7,                       // b _loop
+                0x04, (byte) 0xeb, 0x47, 0x1c,                  // _found: add.w ip, r4, r7, lsl #5
+                (byte) 0xdc, (byte) 0xf8, 0x0c, 0x50,           // ldr.w r5, [ip, #12]
+                (byte) 0x95, (byte) 0xb1,                       // cbz r5, _miss
+                (byte) 0xdc, (byte) 0xf8, 0x10, 0x50,           // ldr.w r5, [ip, #16]
+                (byte) 0xd5, (byte) 0xe8, 0x7f, 0x67,           // _increment: ldrexd r6, r7, [r5]
+                0x01, 0x36,                                     // adds r6, #1
+                0x47, (byte) 0xf1, 0x00, 0x07,                  // adc r7, r7, #0
+                (byte) 0xc5, (byte) 0xe8, 0x74, 0x67,           // strexd r4, r6, r7, [r5]
+                0x00, 0x2c,                                     // cmp r4, #0
+                (byte) 0xf6, (byte) 0xd1,                       // bne _increment
+                (byte) 0xdc, (byte) 0xf8, 0x04, 0x00,           // ldr.w r0, [ip, #4]
+                (byte) 0xdc, (byte) 0xf8, 0x08, (byte) 0xc0,    // ldr.w ip, [ip, #8]
+                (byte) 0xf0, (byte) 0xbc,                       // pop {r4-r7}
+                0x60, 0x47,                                     // bx ip
+                0x0, 0x0, 0x0, 0x0,                             // _count
+                (byte) 0xf0, (byte) 0xbc,                       // _miss: pop {r4-r7}
+                0x00, (byte) 0xbf,                              // nop
+                                                                // CallOriginal
+                                                                // _table: entries
+        };
+        writeInt(count, ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 8);
+        return instructions;
+    }
+
+    @Override
+    public int sizeOfTableEntry() {
+        return 32;
+    }
+
+    @Override
+    public byte[] createTableEntry(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
+        final byte[] entry = new byte[sizeOfTableEntry()];
+        writeInt((int) srcAddress, ByteOrder.LITTLE_ENDIAN, entry, 0);
+        writeInt((int) targetAddress, ByteOrder.LITTLE_ENDIAN, entry, 4);
+        writeInt((int) entryPointFromQuickCompiledCode, ByteOrder.LITTLE_ENDIAN, entry, 8);
+        writeInt(1, ByteOrder.LITTLE_ENDIAN, entry, offsetOfTableEntryEnabled());
+        writeInt((int) counterAddress, ByteOrder.LITTLE_ENDIAN, entry, 16);
+        return entry;
+    }
+
+    @Override
+    public int offsetOfTableEntryEnabled() {
+        return 12;
+    }
+
     @Override
     public int sizeOfArtJump() {
         return 16;
@@ -65,7 +65,8 @@ public class X86 extends InstructionHelper {
     }
 
     @Override
-    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress) {
+    public byte[] createTargetJump(long targetAddress, long entryPointFromQuickCompiledCode, long srcAddress,
+                                   long counterAddress) {
         // TODO: Create target jump for x86.
         byte[] instructions = new byte[]{
         };
@@ -19,7 +19,15 @@
 #include <sys/mman.h>
 #include <errno.h>
 #include <unistd.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
 #include <sys/ptrace.h>
+#include <sys/auxv.h>
+
+#ifndef HWCAP_ATOMICS
+#define HWCAP_ATOMICS (1 << 8)
+#endif
 
 #define LOGV(...)  ((void)__android_log_print(ANDROID_LOG_VERBOSE, "ArtHook_native", __VA_ARGS__))
 
@@ -67,6 +75,119 @@ JNIEXPORT jbyteArray JNICALL Java_de_larma_arthook_Native_memget(JNIEnv *env, jc
     return dest;
 }
 
+JNIEXPORT jobject JNICALL Java_de_larma_arthook_Native_memview(JNIEnv *env, jclass _cls, jlong address, jint length) {
+    return (*env)->NewDirectByteBuffer(env, (void *) address, length);
+}
+
+JNIEXPORT jlong JNICALL Java_de_larma_arthook_Native_peekLong(JNIEnv *env, jclass _cls, jlong address) {
+    jlong value;
+    memcpy(&value, (void *) address, sizeof(value));
+    return value;
+}
+
+JNIEXPORT jint JNICALL Java_de_larma_arthook_Native_peekInt(JNIEnv *env, jclass _cls, jlong address) {
+    jint value;
+    memcpy(&value, (void *) address, sizeof(value));
+    return value;
+}
+
+JNIEXPORT void JNICALL Java_de_larma_arthook_Native_pokeLong(JNIEnv *env, jclass _cls, jlong address, jlong value) {
+    memcpy((void *) address, &value, sizeof(value));
+}
+
+JNIEXPORT void JNICALL Java_de_larma_arthook_Native_pokeInt(JNIEnv *env, jclass _cls, jlong address, jint value) {
+    memcpy((void *) address, &value, sizeof(value));
+}
+
+JNIEXPORT jlong JNICALL Java_de_larma_arthook_Native_atomicGetLong(JNIEnv *env, jclass _cls, jlong address) {
+    return __atomic_load_n((int64_t *) address, __ATOMIC_RELAXED);
+}
+
+JNIEXPORT jboolean JNICALL Java_de_larma_arthook_Native_hasAtomics(JNIEnv *env, jclass _cls) {
+#if defined(__aarch64__)
+    return (getauxval(AT_HWCAP) & HWCAP_ATOMICS) ? JNI_TRUE : JNI_FALSE;
+#else
+    return JNI_FALSE;
+#endif
+}
+
+/* Flags of callPrimitive and callObject, keep in sync with Native.java */
+#define CALL_STATIC 1
+#define CALL_RECEIVER_AS_ARGUMENT 2
+#define CALL_WIDE 4
+
+JNIEXPORT jlong JNICALL Java_de_larma_arthook_Native_methodId(JNIEnv *env, jclass _cls, jobject method) {
+    return (jlong) (intptr_t) (*env)->FromReflectedMethod(env, method);
+}
+
+static jboolean fill_args(jvalue *args, jint flags, jobject receiver, jint count, jlong a0, jlong a1) {
+    jlong words[2] = {a0, a1};
+    int n = 0;
+    if (count < 0 || count > 2) {
+        return JNI_FALSE;
+    }
+    if (flags & CALL_RECEIVER_AS_ARGUMENT) {
+        args[n++].l = receiver;
+    }
+    for (int i = 0; i < count; i++) {
+        if (flags & CALL_WIDE) {
+            args[n++].j = words[i];
+        } else {
+            args[n++].i = (jint) words[i];
+        }
+    }
+    return JNI_TRUE;
+}
+
+JNIEXPORT jlong JNICALL Java_de_larma_arthook_Native_callPrimitive(JNIEnv *env, jclass _cls, jclass clazz, jlong methodId,
+        jobject receiver, jint flags, jchar returnType, jint count, jlong a0, jlong a1) {
+    jmethodID method = (jmethodID) (intptr_t) methodId;
+    jvalue args[3];
+    if (!fill_args(args, flags, receiver, count, a0, a1)) {
+        return 0;
+    }
+    if (flags & (CALL_STATIC | CALL_RECEIVER_AS_ARGUMENT)) {
+        switch (returnType) {
+            case 'V':
+                (*env)->CallStaticVoidMethodA(env, clazz, method, args);
+                return 0;
+            case 'Z':
+                return (*env)->CallStaticBooleanMethodA(env, clazz, method, args);
+            case 'I':
+                return (*env)->CallStaticIntMethodA(env, clazz, method, args);
+            case 'J':
+                return (*env)->CallStaticLongMethodA(env, clazz, method, args);
+        }
+    } else {
+        switch (returnType) {
+            case 'V':
+                (*env)->CallNonvirtualVoidMethodA(env, receiver, clazz, method, args);
+                return 0;
+            case 'Z':
+                return (*env)->CallNonvirtualBooleanMethodA(env, receiver, clazz, method, args);
+            case 'I':
+                return (*env)->CallNonvirtualIntMethodA(env, receiver, clazz, method, args);
+            case 'J':
+                return (*env)->CallNonvirtualLongMethodA(env, receiver, clazz, method, args);
+        }
+    }
+    LOGV("callPrimitive: unsupported return type %c", (char) returnType);
+    return 0;
+}
+
+JNIEXPORT jobject JNICALL Java_de_larma_arthook_Native_callObject(JNIEnv *env, jclass _cls, jclass clazz, jlong methodId,
+        jobject receiver, jint flags, jint count, jlong a0, jlong a1) {
+    jmethodID method = (jmethodID) (intptr_t) methodId;
+    jvalue args[3];
+    if (!fill_args(args, flags, receiver, count, a0, a1)) {
+        return NULL;
+    }
+    if (flags & (CALL_STATIC | CALL_RECEIVER_AS_ARGUMENT)) {
+        return (*env)->CallStaticObjectMethodA(env, clazz, method, args);
+    }
+    return (*env)->CallNonvirtualObjectMethodA(env, receiver, clazz, method, args);
+}
+
 JNIEXPORT jlong JNICALL Java_de_larma_arthook_Native_mmap(JNIEnv *env, jclass _cls, jint length) {
     unsigned char *space = mmap(0, length, PROT_READ|PROT_WRITE|PROT_EXEC, MAP_PRIVATE|MAP_ANONYMOUS, -1, 0);
     if (space == MAP_FAILED) {
@@ -76,6 +197,15 @@ JNIEXPORT jlong JNICALL Java_de_larma_arthook_Native_mmap(JNIEnv *env, jclass _c
     return (jlong) space;
 }
 
+JNIEXPORT jlong JNICALL Java_de_larma_arthook_Native_mmapData(JNIEnv *env, jclass _cls, jint length) {
+    unsigned char *space = mmap(0, length, PROT_READ|PROT_WRITE, MAP_PRIVATE|MAP_ANONYMOUS, -1, 0);
+    if (space == MAP_FAILED) {
+        LOGV("mmap failed: %s (%d)", strerror(errno), errno);
+        return 0;
+    }
+    return (jlong) space;
+}
+
 JNIEXPORT jboolean JNICALL Java_de_larma_arthook_Native_munmap(JNIEnv *env, jclass _cls, jlong addr, jint length) {
     int r = munmap((void*)addr, length);
     if (r == -1) {
@@ -85,6 +215,112 @@ JNIEXPORT jboolean JNICALL Java_de_larma_arthook_Native_munmap(JNIEnv *env, jcla
     return JNI_TRUE;
 }
 
+struct patch {
+    uintptr_t addr;
+    jsize length;
+    jsize index;
+};
+
+static int patch_compare(const void *a, const void *b) {
+    uintptr_t addrA = ((const struct patch *) a)->addr;
+    uintptr_t addrB = ((const struct patch *) b)->addr;
+    return addrA < addrB ? -1 : addrA > addrB ? 1 : 0;
+}
+
+static int patch_compare_index(const void *a, const void *b) {
+    return ((const struct patch *) a)->index - ((const struct patch *) b)->index;
+}
+
+static void write_words(unsigned char *dest, const unsigned char *src, size_t length) {
+    while (length > 0 && ((uintptr_t) dest % sizeof(uintptr_t)) != 0) {
+        *dest++ = *src++;
+        length--;
+    }
+    while (length >= sizeof(uintptr_t)) {
+        uintptr_t word;
+        memcpy(&word, src, sizeof(uintptr_t));
+        *(volatile uintptr_t *) dest = word;
+        dest += sizeof(uintptr_t);
+        src += sizeof(uintptr_t);
+        length -= sizeof(uintptr_t);
+    }
+    while (length > 0) {
+        *dest++ = *src++;
+        length--;
+    }
+}
+
+JNIEXPORT jboolean JNICALL Java_de_larma_arthook_Native_patchBatch(JNIEnv *env, jclass _cls, jlongArray addrs, jobjectArray payloads) {
+    jsize count = (*env)->GetArrayLength(env, addrs);
+    if (count != (*env)->GetArrayLength(env, payloads)) {
+        return JNI_FALSE;
+    }
+    if (count == 0) {
+        return JNI_TRUE;
+    }
+    struct patch *patches = malloc(count * sizeof(struct patch));
+    if (patches == NULL) {
+        return JNI_FALSE;
+    }
+    jlong *addrPnt = (*env)->GetLongArrayElements(env, addrs, 0);
+    for (jsize i = 0; i < count; ++i) {
+        jbyteArray payload = (*env)->GetObjectArrayElement(env, payloads, i);
+        patches[i].addr = (uintptr_t) addrPnt[i];
+        patches[i].length = (*env)->GetArrayLength(env, payload);
+        patches[i].index = i;
+        (*env)->DeleteLocalRef(env, payload);
+    }
+    (*env)->ReleaseLongArrayElements(env, addrs, addrPnt, JNI_ABORT);
+    qsort(patches, (size_t) count, sizeof(struct patch), patch_compare);
+
+    // Unprotect all pages first, so that nothing is written if one of them fails
+    uintptr_t pagesize = (uintptr_t) sysconf(_SC_PAGESIZE);
+    uintptr_t start = patches[0].addr & ~(pagesize - 1);
+    uintptr_t end = start;
+    for (jsize i = 0; i <= count; ++i) {
+        if (i < count && (patches[i].addr & ~(pagesize - 1)) <= end) {
+            uintptr_t patchEnd = (patches[i].addr + patches[i].length + pagesize - 1) & ~(pagesize - 1);
+            if (patchEnd > end) {
+                end = patchEnd;
+            }
+            continue;
+        }
+        if (end > start && mprotect((void *) start, end - start, PROT_READ | PROT_WRITE | PROT_EXEC) == -1) {
+            LOGV("mprotect failed: %s (%d)", strerror(errno), errno);
+            free(patches);
+            return JNI_FALSE;
+        }
+        if (i < count) {
+            start = patches[i].addr & ~(pagesize - 1);
+            end = (patches[i].addr + patches[i].length + pagesize - 1) & ~(pagesize - 1);
+        }
+    }
+
+    // Write in the order of the caller, a jump must never go live before the code it jumps to
+    // was written and flushed. Only patches following each other directly share a flush.
+    qsort(patches, (size_t) count, sizeof(struct patch), patch_compare_index);
+    start = patches[0].addr;
+    end = start;
+    for (jsize i = 0; i < count; ++i) {
+        if (patches[i].addr < start || patches[i].addr > end) {
+            __builtin___clear_cache((char *) start, (char *) end);
+            start = patches[i].addr;
+            end = start;
+        }
+        jbyteArray payload = (*env)->GetObjectArrayElement(env, payloads, i);
+        jbyte *srcPnt = (*env)->GetByteArrayElements(env, payload, 0);
+        write_words((unsigned char *) patches[i].addr, (unsigned char *) srcPnt, (size_t) patches[i].length);
+        (*env)->ReleaseByteArrayElements(env, payload, srcPnt, JNI_ABORT);
+        (*env)->DeleteLocalRef(env, payload);
+        if (patches[i].addr + patches[i].length > end) {
+            end = patches[i].addr + patches[i].length;
+        }
+    }
+    __builtin___clear_cache((char *) start, (char *) end);
+    free(patches);
+    return JNI_TRUE;
+}
+
 JNIEXPORT void JNICALL Java_de_larma_arthook_Native_ptrace(JNIEnv* env, jclass _cls, jint pid) {
     ptrace(PTRACE_ATTACH,(pid_t)pid,0,0);
 }
\ No newline at end of file
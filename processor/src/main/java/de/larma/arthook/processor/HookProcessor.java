@@ -0,0 +1,514 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Validates all {@code @Hook} and {@code @BackupIdentifier} declarations and generates a
+ * {@code <HookClass>$$HookRegistry} for every class declaring hooks, so that targets don't need
+ * to be searched at runtime.
+ * <p/>
+ * The registry also declares a bridge for every hook it can call: a static method with the same
+ * name and parameters, which enters the hook's {@code HookDispatch} frame around the call.
+ * <p/>
+ * All registries are listed in {@code META-INF/services/de.larma.arthook.HookRegistry}, so they
+ * can be found without knowing the (possibly obfuscated) name of their hook class.
+ * <p/>
+ * Only uses the names of the annotations, so it does not depend on the (Android) library.
+ */
+public class HookProcessor extends AbstractProcessor {
+    private static final String HOOK = "de.larma.arthook.Hook";
+    private static final String BACKUP_IDENTIFIER = "de.larma.arthook.BackupIdentifier";
+    private static final String REGISTRY = "de.larma.arthook.HookRegistry";
+    private static final String REGISTRY_SUFFIX = "$$HookRegistry";
+    private static final String REGISTRY_INDEX = "META-INF/services/de.larma.arthook.HookRegistry";
+    private static final String CONSTRUCTOR = "<init>";
+
+    private final Map<String, ExecutableElement> backupIdentifiers = new HashMap<>();
+    private final Set<String> registryNames = new LinkedHashSet<>();
+    private final List<Element> registryOrigins = new ArrayList<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new LinkedHashSet<>();
+        types.add(HOOK);
+        types.add(BACKUP_IDENTIFIER);
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeRegistryIndex();
+            return false;
+        }
+        TypeElement hookAnnotation = processingEnv.getElementUtils().getTypeElement(HOOK);
+        if (hookAnnotation == null) {
+            return false;
+        }
+        TypeElement backupAnnotation = processingEnv.getElementUtils().getTypeElement(BACKUP_IDENTIFIER);
+        if (backupAnnotation != null) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(backupAnnotation)) {
+                if (getAnnotationValue(element, HOOK) == null) {
+                    error(element, "@BackupIdentifier can only be used on methods with @Hook");
+                }
+            }
+        }
+
+        Map<TypeElement, List<RegistryEntry>> registries = new LinkedHashMap<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(roundEnv.getElementsAnnotatedWith(hookAnnotation))) {
+            boolean bridged = canBridge(method);
+            String descriptor = createDescriptor(method, bridged);
+            if (descriptor != null) {
+                TypeElement type = (TypeElement) method.getEnclosingElement();
+                if (!registries.containsKey(type)) {
+                    registries.put(type, new ArrayList<RegistryEntry>());
+                }
+                registries.get(type).add(new RegistryEntry(method, descriptor, bridged));
+            }
+        }
+        for (Map.Entry<TypeElement, List<RegistryEntry>> entry : registries.entrySet()) {
+            writeRegistry(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * @return Source code creating the HookDescriptor for the given hook, or null if it is
+     * invalid (an error was reported in this case)
+     */
+    private String createDescriptor(ExecutableElement method, boolean bridged) {
+        String value = getAnnotationValue(method, HOOK);
+        if (!method.getModifiers().contains(Modifier.STATIC)) {
+            error(method, "@Hook methods must be static");
+            return null;
+        }
+        String[] split = value.split("->");
+        if (split.length == 0 || split.length > 2 || split[0].isEmpty()) {
+            error(method, "@Hook value must be \"className\" or \"className->methodName\", was \"" + value + "\"");
+            return null;
+        }
+        String targetClassName = split[0];
+        String targetName = split.length == 1 ? method.getSimpleName().toString() : split[1];
+        List<? extends VariableElement> params = method.getParameters();
+
+        String backupIdentifier = getAnnotationValue(method, BACKUP_IDENTIFIER);
+        if (backupIdentifier != null) {
+            ExecutableElement other = backupIdentifiers.get(backupIdentifier);
+            if (other != null && !other.equals(method)) {
+                error(method, "@BackupIdentifier \"" + backupIdentifier + "\" is already used by " + other);
+                return null;
+            }
+            backupIdentifiers.put(backupIdentifier, method);
+        }
+
+        String kind;
+        TypeElement targetClass = findType(targetClassName);
+        if (targetName.equals("()") || targetName.equals(CONSTRUCTOR)) {
+            targetName = CONSTRUCTOR;
+            kind = "CONSTRUCTOR";
+            if (method.getReturnType().getKind() != TypeKind.VOID) {
+                error(method, "@Hook methods for constructors must return void");
+                return null;
+            }
+            if (params.isEmpty()) {
+                error(method, "@Hook methods for constructors need the new instance as first parameter");
+                return null;
+            }
+            if (targetClass != null && findTarget(targetClass, CONSTRUCTOR, params.subList(1, params.size()), false) == null) {
+                error(method, "Target constructor not found in " + targetClassName);
+                return null;
+            }
+        } else if (targetClass == null) {
+            kind = "UNKNOWN";
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "Target class " + targetClassName + " not available, target is resolved at runtime", method);
+        } else {
+            ExecutableElement target = findTarget(targetClass, targetName, params, true);
+            kind = "STATIC";
+            if (target == null && !params.isEmpty()) {
+                target = findTarget(targetClass, targetName, params.subList(1, params.size()), false);
+                kind = "INSTANCE";
+            }
+            if (target == null) {
+                error(method, "Target method " + targetName + " with matching parameters not found in " + targetClassName);
+                return null;
+            }
+            if (!processingEnv.getTypeUtils().isAssignable(erasure(target.getReturnType()), erasure(method.getReturnType()))) {
+                error(method, "Return type of @Hook method does not match " + target);
+                return null;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("new HookDescriptor(").append(literal(method.getSimpleName().toString())).append(", new Class<?>[]{");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(erasure(params.get(i).asType())).append(".class");
+        }
+        sb.append("},\n                        ").append(literal(targetClassName)).append(", ")
+                .append(literal(targetName)).append(", HookDescriptor.").append(kind).append(", ")
+                .append(backupIdentifier == null ? "null" : literal(backupIdentifier)).append(", ")
+                .append(bridged).append(")");
+        return sb.toString();
+    }
+
+    /**
+     * @return Whether the registry can call the given hook, which is not the case if the hook or
+     * any type in its signature is private, or if its bridge would clash with a method of the
+     * registry
+     */
+    private boolean canBridge(ExecutableElement method) {
+        if (!isAccessible(method)) {
+            return false;
+        }
+        ExecutableElement clash = findRegistryMethod(method);
+        if (clash != null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Hook " + method.getSimpleName() +
+                    " is called without bridge, as its bridge would hide " + clash.getEnclosingElement() + "." +
+                    clash + " in the registry", method);
+            return false;
+        }
+        List<TypeMirror> types = new ArrayList<>();
+        types.add(method.getReturnType());
+        for (VariableElement param : method.getParameters()) {
+            types.add(param.asType());
+        }
+        types.addAll(method.getThrownTypes());
+        for (TypeMirror type : types) {
+            TypeMirror erased = erasure(type);
+            while (erased.getKind() == TypeKind.ARRAY) {
+                erased = ((ArrayType) erased).getComponentType();
+            }
+            if (erased.getKind() == TypeKind.DECLARED && !isAccessible(((DeclaredType) erased).asElement())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The bridge of a hook is a static method of the registry with the same name and parameters,
+     * which does not compile if it has the signature of an instance method of HookRegistry or
+     * Object.
+     *
+     * @return The instance method the bridge of the given hook would hide, or null if there is none
+     */
+    private ExecutableElement findRegistryMethod(ExecutableElement method) {
+        for (String typeName : new String[]{REGISTRY, Object.class.getName()}) {
+            TypeElement type = processingEnv.getElementUtils().getTypeElement(typeName);
+            if (type == null) {
+                continue;
+            }
+            for (ExecutableElement member : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+                if (!member.getModifiers().contains(Modifier.STATIC) && !member.getModifiers().contains(Modifier.PRIVATE) &&
+                        member.getSimpleName().contentEquals(method.getSimpleName()) &&
+                        sameParameters(member.getParameters(), method.getParameters())) {
+                    return member;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether the given element and all classes enclosing it are accessible from their
+     * package
+     */
+    private static boolean isAccessible(Element element) {
+        for (Element e = element; e != null && e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private TypeElement findType(String binaryName) {
+        TypeElement type = processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.'));
+        if (type == null || !processingEnv.getElementUtils().getBinaryName(type).contentEquals(binaryName)) {
+            return null;
+        }
+        return type;
+    }
+
+    private ExecutableElement findTarget(TypeElement targetClass, String name, List<? extends VariableElement> params,
+                                         boolean isStatic) {
+        for (Element element : targetClass.getEnclosedElements()) {
+            if (!(element instanceof ExecutableElement) || !element.getSimpleName().contentEquals(name)) {
+                continue;
+            }
+            ExecutableElement candidate = (ExecutableElement) element;
+            if (name.equals(CONSTRUCTOR)) {
+                if (candidate.getKind() != ElementKind.CONSTRUCTOR || !candidate.getModifiers().contains(Modifier.PUBLIC)) {
+                    continue;
+                }
+            } else if (candidate.getModifiers().contains(Modifier.STATIC) != isStatic) {
+                continue;
+            }
+            if (sameParameters(candidate.getParameters(), params)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean sameParameters(List<? extends VariableElement> a, List<? extends VariableElement> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!processingEnv.getTypeUtils().isSameType(erasure(a.get(i).asType()), erasure(b.get(i).asType()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeRegistry(TypeElement type, List<RegistryEntry> entries) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) +
+                REGISTRY_SUFFIX;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                    packageName.isEmpty() ? simpleName : packageName + "." + simpleName, type);
+            registryNames.add(packageName.isEmpty() ? simpleName : packageName + "." + simpleName);
+            registryOrigins.add(type);
+            Writer writer = file.openWriter();
+            try {
+                writer.write("// Generated by the ArtHook annotation processor, do not edit.\n");
+                if (!packageName.isEmpty()) {
+                    writer.write("package " + packageName + ";\n\n");
+                }
+                writer.write("import de.larma.arthook.HookDescriptor;\n");
+                writer.write("import de.larma.arthook.HookDispatch;\n");
+                writer.write("import de.larma.arthook.HookRegistry;\n\n");
+                writer.write("@SuppressWarnings(\"unchecked\")\n");
+                writer.write("public final class " + simpleName + " implements HookRegistry {\n");
+                writer.write("    private static final HookDescriptor[] HOOKS = {\n");
+                for (RegistryEntry entry : entries) {
+                    writer.write("            " + entry.descriptor + ",\n");
+                }
+                writer.write("    };\n\n");
+                writer.write("    @Override\n");
+                writer.write("    public Class<?> getHookClass() {\n");
+                writer.write("        return " + type.getQualifiedName() + ".class;\n");
+                writer.write("    }\n\n");
+                writer.write("    @Override\n");
+                writer.write("    public HookDescriptor[] getHooks() {\n");
+                writer.write("        return HOOKS.clone();\n");
+                writer.write("    }\n");
+                for (int i = 0; i < entries.size(); i++) {
+                    if (entries.get(i).bridged) {
+                        writer.write("\n");
+                        writeBridge(writer, type, entries.get(i).method, i);
+                    }
+                }
+                writer.write("}\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(type, "Can't write " + simpleName + ": " + e);
+        }
+    }
+
+    private void writeRegistryIndex() {
+        if (registryNames.isEmpty()) {
+            return;
+        }
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    REGISTRY_INDEX, registryOrigins.toArray(new Element[registryOrigins.size()]));
+            Writer writer = file.openWriter();
+            try {
+                for (String name : registryNames) {
+                    writer.write(name + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Can't write " + REGISTRY_INDEX + ": " + e);
+        }
+    }
+
+    private void writeBridge(Writer writer, TypeElement type, ExecutableElement method, int index) throws IOException {
+        TypeMirror returnType = erasure(method.getReturnType());
+        List<? extends VariableElement> params = method.getParameters();
+        StringBuilder sb = new StringBuilder();
+        sb.append("    public static ").append(returnType).append(" ").append(method.getSimpleName()).append("(");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(erasure(params.get(i).asType())).append(" p").append(i);
+        }
+        sb.append(")");
+        for (int i = 0; i < method.getThrownTypes().size(); i++) {
+            sb.append(i == 0 ? " throws " : ", ").append(erasure(method.getThrownTypes().get(i)));
+        }
+        sb.append(" {\n");
+        sb.append("        HookDispatch.Frame frame = HOOKS[").append(index).append("].enter();\n");
+        sb.append("        try {\n");
+        sb.append("            if (frame.isTraced()) {\n");
+        sb.append("                frame.traceEnter(");
+        for (int i = 0; i < 3; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(i < params.size() ? "p" + i : "null");
+        }
+        sb.append(");\n");
+        sb.append("            }\n");
+        sb.append("            if (!frame.hasCallbacks()) {\n");
+        sb.append("                ");
+        if (returnType.getKind() != TypeKind.VOID) {
+            sb.append("return (").append(returnType).append(") ");
+        }
+        sb.append(type.getQualifiedName()).append(".").append(method.getSimpleName()).append("(");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("p").append(i);
+        }
+        sb.append(");\n");
+        if (returnType.getKind() == TypeKind.VOID) {
+            sb.append("                return;\n");
+        }
+        sb.append("            }\n");
+        // The callbacks see and may change the arguments and result as objects
+        sb.append("            Object[] args = frame.arguments(").append(params.size()).append(");\n");
+        for (int i = 0; i < params.size(); i++) {
+            sb.append("            args[").append(i).append("] = p").append(i).append(";\n");
+        }
+        sb.append("            if (frame.beforeCall()) {\n");
+        sb.append("                try {\n");
+        sb.append("                    ");
+        if (returnType.getKind() != TypeKind.VOID) {
+            sb.append("frame.setResult(");
+        }
+        sb.append(type.getQualifiedName()).append(".").append(method.getSimpleName()).append("(");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("(").append(boxed(erasure(params.get(i).asType()))).append(") args[").append(i).append("]");
+        }
+        if (returnType.getKind() != TypeKind.VOID) {
+            sb.append("));\n");
+        } else {
+            sb.append(");\n");
+            sb.append("                    frame.setResult(null);\n");
+        }
+        sb.append("                } catch (Throwable t) {\n");
+        sb.append("                    frame.setThrowable(t);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            ");
+        if (returnType.getKind() != TypeKind.VOID) {
+            sb.append("return (").append(boxed(returnType)).append(") ");
+        }
+        sb.append("frame.afterCall();\n");
+        sb.append("        } finally {\n");
+        sb.append("            frame.exit();\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+        writer.write(sb.toString());
+    }
+
+    /**
+     * @return The type to cast an object to before it is assigned to the given type, the wrapper
+     * class for primitive types
+     */
+    private TypeMirror boxed(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).asType();
+        }
+        return type;
+    }
+
+    private TypeMirror erasure(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type);
+    }
+
+    private static String getAnnotationValue(Element element, String annotationName) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                        mirror.getElementValues().entrySet()) {
+                    if (entry.getKey().getSimpleName().contentEquals("value")) {
+                        return (String) entry.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String literal(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static final class RegistryEntry {
+        final ExecutableElement method;
+        final String descriptor;
+        final boolean bridged;
+
+        RegistryEntry(ExecutableElement method, String descriptor, boolean bridged) {
+            this.method = method;
+            this.descriptor = descriptor;
+            this.bridged = bridged;
+        }
+    }
+}
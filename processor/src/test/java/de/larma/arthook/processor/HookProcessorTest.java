@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014-2015 Marvin Wißfeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.larma.arthook.processor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HookProcessorTest {
+    // The processor only looks at the names of the annotations, the other classes are imported
+    // by the generated registries. The library itself can't be used on the host.
+    private static final String HOOK = "package de.larma.arthook;\n" +
+            "public @interface Hook { String value(); }\n";
+    private static final String BACKUP_IDENTIFIER = "package de.larma.arthook;\n" +
+            "public @interface BackupIdentifier { String value(); }\n";
+    private static final String HOOK_DESCRIPTOR = "package de.larma.arthook;\n" +
+            "public class HookDescriptor {}\n";
+    private static final String HOOK_DISPATCH = "package de.larma.arthook;\n" +
+            "public class HookDispatch {}\n";
+    private static final String HOOK_REGISTRY = "package de.larma.arthook;\n" +
+            "public interface HookRegistry {\n" +
+            "    Class<?> getHookClass();\n" +
+            "    HookDescriptor[] getHooks();\n" +
+            "}\n";
+    private static final String REGISTRY = "test/Hooks$$HookRegistry.java";
+
+    private File output;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @Before
+    public void setUp() throws IOException {
+        output = Files.createTempDirectory("HookProcessorTest").toFile();
+        diagnostics = new DiagnosticCollector<>();
+    }
+
+    @After
+    public void tearDown() {
+        delete(output);
+    }
+
+    @Test
+    public void staticTarget() throws IOException {
+        assertProcessed(hooks("@Hook(\"java.lang.Integer->parseInt\")\n" +
+                "    public static int parseInt(String s) { return 0; }\n"));
+        assertTrue(read(REGISTRY).contains("new HookDescriptor(\"parseInt\", new Class<?>[]{java.lang.String.class},\n" +
+                "                        \"java.lang.Integer\", \"parseInt\", HookDescriptor.STATIC, null, true)"));
+    }
+
+    @Test
+    public void instanceTarget() throws IOException {
+        assertProcessed(hooks("@Hook(\"java.lang.StringBuilder\")\n" +
+                "    public static StringBuilder append(StringBuilder sb, String s) { return sb; }\n"));
+        assertTrue(read(REGISTRY).contains("\"java.lang.StringBuilder\", \"append\", HookDescriptor.INSTANCE, null, true)"));
+    }
+
+    @Test
+    public void constructorTarget() throws IOException {
+        assertProcessed(hooks("@Hook(\"java.util.ArrayList->()\")\n" +
+                "    public static void init(java.util.ArrayList<?> list, int capacity) {}\n"));
+        assertTrue(read(REGISTRY).contains("\"java.util.ArrayList\", \"<init>\", HookDescriptor.CONSTRUCTOR, null, true)"));
+    }
+
+    @Test
+    public void unknownTarget() throws IOException {
+        assertProcessed(hooks("@Hook(\"com.example.Missing->foo\")\n" +
+                "    public static void foo(Object o) {}\n"));
+        assertTrue(read(REGISTRY).contains("\"com.example.Missing\", \"foo\", HookDescriptor.UNKNOWN, null, true)"));
+        assertTrue(hasDiagnostic(Diagnostic.Kind.NOTE, "not available"));
+    }
+
+    @Test
+    public void duplicateBackupIdentifier() {
+        assertFalse(process(hooks("@Hook(\"java.lang.Integer->parseInt\") @BackupIdentifier(\"parse\")\n" +
+                "    public static int parseInt(String s) { return 0; }\n" +
+                "    @Hook(\"java.lang.Long->parseLong\") @BackupIdentifier(\"parse\")\n" +
+                "    public static long parseLong(String s) { return 0; }\n")));
+        assertTrue(hasDiagnostic(Diagnostic.Kind.ERROR, "@BackupIdentifier \"parse\" is already used"));
+    }
+
+    @Test
+    public void missingTarget() {
+        assertFalse(process(hooks("@Hook(\"java.lang.Integer->parseInt\")\n" +
+                "    public static int parseInt(Object o) { return 0; }\n")));
+        assertTrue(hasDiagnostic(Diagnostic.Kind.ERROR, "Target method parseInt with matching parameters not found"));
+    }
+
+    @Test
+    public void privateHookIsNotBridged() throws IOException {
+        assertProcessed(hooks("@Hook(\"java.lang.Integer->parseInt\")\n" +
+                "    private static int parseInt(String s) { return 0; }\n"));
+        String registry = read(REGISTRY);
+        assertTrue(registry.contains("HookDescriptor.STATIC, null, false)"));
+        assertFalse(registry.contains("public static int parseInt"));
+    }
+
+    @Test
+    public void hookNamedLikeRegistryMethodIsNotBridged() throws IOException {
+        assertProcessed(hooks("@Hook(\"java.lang.System->currentTimeMillis\")\n" +
+                "    public static long getHookClass() { return 0; }\n" +
+                "    @Hook(\"java.lang.System->nanoTime\")\n" +
+                "    public static long getHooks() { return 0; }\n" +
+                "    @Hook(\"java.lang.Object->toString\")\n" +
+                "    public static String toString(Object o) { return null; }\n" +
+                "    @Hook(\"java.lang.Object->notify\")\n" +
+                "    public static void notify(Object o) {}\n"));
+        String registry = read(REGISTRY);
+        assertTrue(registry.contains("\"getHookClass\", new Class<?>[]{},\n" +
+                "                        \"java.lang.System\", \"currentTimeMillis\", HookDescriptor.STATIC, null, false)"));
+        assertTrue(registry.contains("\"java.lang.System\", \"nanoTime\", HookDescriptor.STATIC, null, false)"));
+        assertFalse(registry.contains("public static long getHookClass()"));
+        assertFalse(registry.contains("public static long getHooks()"));
+        assertTrue(hasDiagnostic(Diagnostic.Kind.NOTE, "would hide de.larma.arthook.HookRegistry.getHookClass()"));
+        // Different parameters, so the bridges don't clash
+        assertTrue(registry.contains("public static java.lang.String toString(java.lang.Object p0)"));
+        assertTrue(registry.contains("public static void notify(java.lang.Object p0)"));
+    }
+
+    @Test
+    public void bridgeRunsCallbacks() throws IOException {
+        assertProcessed(hooks("@Hook(\"java.lang.Integer->parseInt\")\n" +
+                "    public static int parseInt(String s) { return 0; }\n"));
+        String registry = read(REGISTRY);
+        assertTrue(registry.contains("frame.traceEnter(p0, null, null);"));
+        assertTrue(registry.contains("return (int) test.Hooks.parseInt(p0);"));
+        assertTrue(registry.contains("frame.setResult(test.Hooks.parseInt((java.lang.String) args[0]));"));
+        assertTrue(registry.contains("return (java.lang.Integer) frame.afterCall();"));
+    }
+
+    @Test
+    public void registryIndex() throws IOException {
+        assertProcessed(hooks("@Hook(\"java.lang.Integer->parseInt\")\n" +
+                "    public static int parseInt(String s) { return 0; }\n"));
+        assertEquals("test.Hooks$$HookRegistry\n", read("META-INF/services/de.larma.arthook.HookRegistry"));
+    }
+
+    private void assertProcessed(JavaFileObject hooks) {
+        boolean processed = process(hooks);
+        assertTrue(diagnostics.getDiagnostics().toString(), processed);
+    }
+
+    private static JavaFileObject hooks(String members) {
+        return source("test/Hooks.java", "package test;\n" +
+                "import de.larma.arthook.BackupIdentifier;\n" +
+                "import de.larma.arthook.Hook;\n" +
+                "public class Hooks {\n" +
+                "    " + members +
+                "}\n");
+    }
+
+    private static JavaFileObject source(String path, final String code) {
+        return new SimpleJavaFileObject(URI.create("string:///" + path), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+
+    /**
+     * @return Whether processing succeeded without errors
+     */
+    private boolean process(JavaFileObject hooks) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.ROOT,
+                Charset.forName("UTF-8"));
+        try {
+            fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(output));
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(output));
+            List<JavaFileObject> sources = new ArrayList<>(Arrays.asList(hooks,
+                    source("de/larma/arthook/Hook.java", HOOK),
+                    source("de/larma/arthook/BackupIdentifier.java", BACKUP_IDENTIFIER),
+                    source("de/larma/arthook/HookDescriptor.java", HOOK_DESCRIPTOR),
+                    source("de/larma/arthook/HookDispatch.java", HOOK_DISPATCH),
+                    source("de/larma/arthook/HookRegistry.java", HOOK_REGISTRY)));
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Collections.singletonList("-proc:only"), null, sources);
+            task.setProcessors(Collections.singletonList(new HookProcessor()));
+            return task.call();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                fileManager.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private boolean hasDiagnostic(Diagnostic.Kind kind, String message) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == kind && diagnostic.getMessage(Locale.ROOT).contains(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String read(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(output, path).toPath()), "UTF-8");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -43,8 +43,12 @@ public class MyApplication extends Application {
 
         try {
             Log.d("MyApplication", "Time:" + System.currentTimeMillis());
-            Log.d("MyApplication", "BackupTime:" + OriginalMethod.byOriginal(System.class
-                    .getDeclaredMethod("currentTimeMillis")).invokeStatic());
+            OriginalMethod backup = OriginalMethod.byOriginal(System.class.getDeclaredMethod("currentTimeMillis"));
+            if (backup != null) {
+                Log.d("MyApplication", "BackupTime:" + backup.invokeStatic());
+            } else {
+                Log.w(TAG, "System.currentTimeMillis() is not hooked");
+            }
             pieceGame();
         } catch (Exception e) {
             Log.w(TAG, e);
@@ -113,7 +117,7 @@ public class MyApplication extends Application {
     @Hook("java.lang.System->currentTimeMillis")
     public static long System_currentTimeMillis() {
         Log.d(TAG, "currentTimeMillis is much better in seconds :)");
-        return (long) OriginalMethod.by(new $() {}).invokeStatic() / 1000L;
+        return OriginalMethod.by(new $() {}).invokeLong(null) / 1000L;
     }
 
     /**